@@ -1,19 +1,23 @@
 package com.github.hhhzzzsss.songplayer;
 
-import com.github.hhhzzzsss.songplayer.item.SongItemCreatorThread;
+import com.github.hhhzzzsss.songplayer.item.SongItemCreateTask;
 import com.github.hhhzzzsss.songplayer.item.SongItemUtils;
+import com.github.hhhzzzsss.songplayer.playing.PacketBudget;
+import com.github.hhhzzzsss.songplayer.playing.PlaybackScheduler;
 import com.github.hhhzzzsss.songplayer.playing.SongHandler;
 import com.github.hhhzzzsss.songplayer.playing.Stage;
-import com.github.hhhzzzsss.songplayer.song.Note;
 import com.github.hhhzzzsss.songplayer.song.Playlist;
 import com.github.hhhzzzsss.songplayer.song.Song;
+import com.github.hhhzzzsss.songplayer.song.SongCache;
+import com.github.hhhzzzsss.songplayer.song.SongLibrary;
+import com.github.hhhzzzsss.songplayer.song.SongLoader;
+import com.github.hhhzzzsss.songplayer.song.SongReference;
 import com.mojang.brigadier.suggestion.Suggestions;
 import com.mojang.brigadier.suggestion.SuggestionsBuilder;
 import net.minecraft.command.CommandSource;
 import net.minecraft.item.ItemStack;
 import net.minecraft.text.*;
 import net.minecraft.util.Formatting;
-import net.minecraft.util.Hand;
 import net.minecraft.world.GameMode;
 
 import java.io.IOException;
@@ -59,6 +63,11 @@ public class CommandProcessor {
 		commands.add(new announcementCommand());
 		commands.add(new toggleSurvivalOnlyCommand());
 		commands.add(new toggleFlightNoclipCommand());
+		commands.add(new togglePrecisePlaybackCommand());
+		commands.add(new packetBudgetCommand());
+		commands.add(new dedupWindowCommand());
+		commands.add(new songCacheCommand());
+		commands.add(new libraryCommand());
 		commands.add(new songItemCommand());
 		commands.add(new testSongCommand());
 
@@ -379,6 +388,14 @@ public class CommandProcessor {
 				long currentTime = Math.min(currentSong.time, currentSong.length);
 				long totalTime = currentSong.length;
 				Util.showChatMessage(String.format("§6正在播放 %s §3(%s/%s)", currentSong.name, Util.formatTime(currentTime), Util.formatTime(totalTime)));
+				PlaybackScheduler.LatenessStats lateness = SongHandler.getInstance().playbackLateness;
+				if (Config.getConfig().precisePlayback && lateness.getNotes() > 0) {
+					Util.showChatMessage(String.format("§6音符延迟: 平均 §3%.2fms§6, 最大 §3%.2fms §6(%d 个音符)", lateness.getMeanMillis(), lateness.getMaxMillis(), lateness.getNotes()));
+				}
+				PacketBudget packetBudget = SongHandler.getInstance().packetBudget;
+				if (packetBudget.getShedNotes() > 0) {
+					Util.showChatMessage(String.format("§6因数据包限制丢弃了 §3%d§6/%d 个音符", packetBudget.getShedNotes(), packetBudget.getShedNotes() + packetBudget.getPlayedNotes()));
+				}
 				return true;
 			}
 			else {
@@ -412,9 +429,9 @@ public class CommandProcessor {
 					Util.showChatMessage("§6当前歌曲: §3" + SongHandler.getInstance().currentSong.name);
 				}
 				int index = 0;
-				for (Song song : SongHandler.getInstance().songQueue) {
+				for (SongReference song : SongHandler.getInstance().songQueue) {
 					index++;
-					Util.showChatMessage(String.format("§6%d. §3%s", index, song.name));
+					Util.showChatMessage(String.format("§6%d. §3%s", index, song.getName()));
 				}
 				Util.showChatMessage("§6------------------------------");
 				return true;
@@ -442,6 +459,14 @@ public class CommandProcessor {
 		}
 		public boolean processCommand(String args) {
 			if (!args.contains(" ")) {
+				// The library index is listed instead of the folder when it has the directory
+				String libraryDir = args.isEmpty() || args.endsWith("/") ? args : args + "/";
+				SongLibrary library = SongLibrary.getInstance();
+				if (library.isReady() && library.hasDirectory(libraryDir)) {
+					showSongList(args, library.getSubdirectories(libraryDir), library.getSongs(libraryDir));
+					return true;
+				}
+
 				Path dir;
 				if (args.length() == 0) {
 					dir = SongPlayer.SONG_DIR;
@@ -474,26 +499,29 @@ public class CommandProcessor {
 					return true;
 				}
 
-				if (subdirectories.size() == 0 && songs.size() == 0) {
-					Util.showChatMessage("§b未找到歌曲。您可以将midi或nbs文件放在 §3.minecraft/songs §6文件夹中。");
-				}
-				else {
-					Util.showChatMessage("§6----------------------------------------");
-					Util.showChatMessage("§e.minecraft/songs/" + args + " 的内容");
-					if (subdirectories.size() > 0) {
-						Util.showChatMessage("§6子目录: §3" + String.join(" ", subdirectories));
-					}
-					if (songs.size() > 0) {
-						Util.showChatMessage("§6歌曲: §7" + String.join(", ", songs));
-					}
-					Util.showChatMessage("§6----------------------------------------");
-				}
+				showSongList(args, subdirectories, songs);
 				return true;
 			}
 			else {
 				return false;
 			}
 		}
+		private void showSongList(String args, List<String> subdirectories, List<String> songs) {
+			if (subdirectories.size() == 0 && songs.size() == 0) {
+				Util.showChatMessage("§b未找到歌曲。您可以将midi或nbs文件放在 §3.minecraft/songs §6文件夹中。");
+			}
+			else {
+				Util.showChatMessage("§6----------------------------------------");
+				Util.showChatMessage("§e.minecraft/songs/" + args + " 的内容");
+				if (subdirectories.size() > 0) {
+					Util.showChatMessage("§6子目录: §3" + String.join(" ", subdirectories));
+				}
+				if (songs.size() > 0) {
+					Util.showChatMessage("§6歌曲: §7" + String.join(", ", songs));
+				}
+				Util.showChatMessage("§6----------------------------------------");
+			}
+		}
 		public CompletableFuture<Suggestions> getSuggestions(String args, SuggestionsBuilder suggestionsBuilder) {
 			return Util.giveSongDirectorySuggestions(args, suggestionsBuilder);
 		}
@@ -514,6 +542,9 @@ public class CommandProcessor {
 					"renameSong <playlist> <index> <new name>",
 					"loop",
 					"shuffle",
+					"prefetch <count>",
+					"memoryBudget <megabytes>",
+					"unionStage",
 			};
 		}
 		public String getDescription() {
@@ -633,6 +664,54 @@ public class CommandProcessor {
 						Config.saveConfigWithErrorHandling();
 						return true;
 					}
+					case "prefetch": {
+						if (split.length != 2) return false;
+						int count;
+						try {
+							count = Integer.parseInt(split[1]);
+						} catch (NumberFormatException e) {
+							Util.showChatMessage("§c数量必须是整数");
+							return true;
+						}
+						if (count < 1) {
+							Util.showChatMessage("§c数量必须至少为1");
+							return true;
+						}
+						Config.getConfig().playlistPrefetchCount = count;
+						Config.saveConfigWithErrorHandling();
+						Util.showChatMessage("§6播放列表将预加载接下来的 §3" + count + " §6首歌曲");
+						return true;
+					}
+					case "memorybudget": {
+						if (split.length != 2) return false;
+						int budget;
+						try {
+							budget = Integer.parseInt(split[1]);
+						} catch (NumberFormatException e) {
+							Util.showChatMessage("§c大小必须是整数");
+							return true;
+						}
+						if (budget < 0) {
+							Util.showChatMessage("§c大小不能为负数");
+							return true;
+						}
+						Config.getConfig().playlistMemoryBudget = budget;
+						Config.saveConfigWithErrorHandling();
+						Util.showChatMessage("§6已将播放列表内存预算设置为 §3" + budget + " §6MB");
+						return true;
+					}
+					case "unionstage": {
+						if (split.length != 1) return false;
+						Config.getConfig().playlistUnionStage = !Config.getConfig().playlistUnionStage;
+						SongHandler.getInstance().setPlaylistUnionStage(Config.getConfig().playlistUnionStage);
+						if (Config.getConfig().playlistUnionStage) {
+							Util.showChatMessage("§6已启用播放列表统一舞台");
+						} else {
+							Util.showChatMessage("§6已禁用播放列表统一舞台");
+						}
+						Config.saveConfigWithErrorHandling();
+						return true;
+					}
 					default: {
 						return false;
 					}
@@ -656,12 +735,18 @@ public class CommandProcessor {
 						"renameSong",
 						"loop",
 						"shuffle",
+						"prefetch",
+						"memoryBudget",
+						"unionStage",
 				}, suggestionsBuilder);
 			}
 			switch (split[0].toLowerCase(Locale.ROOT)) {
 				case "create":
 				case "loop":
 				case "shuffle":
+				case "prefetch":
+				case "memorybudget":
+				case "unionstage":
 				default: {
 					return null;
 				}
@@ -1312,6 +1397,341 @@ public class CommandProcessor {
 		}
 	}
 
+	private static class togglePrecisePlaybackCommand extends Command {
+		public String getName() {
+			return "togglePrecisePlayback";
+		}
+		public String[] getAliases() {
+			return new String[]{"precisePlayback"};
+		}
+		public String[] getSyntax() {
+			return new String[0];
+		}
+		public String getDescription() {
+			return "切换精确播放模式。启用时，音符由独立线程按纳秒级时间表播放，不受帧率影响。";
+		}
+		public boolean processCommand(String args) {
+			if (args.length() == 0) {
+				Config.getConfig().precisePlayback = !Config.getConfig().precisePlayback;
+				if (Config.getConfig().precisePlayback) {
+					Util.showChatMessage("§6已启用精确播放模式");
+				}
+				else {
+					Util.showChatMessage("§6已禁用精确播放模式");
+				}
+				Config.saveConfigWithErrorHandling();
+				return true;
+			}
+			else {
+				return false;
+			}
+		}
+	}
+
+	private static class packetBudgetCommand extends Command {
+		public String getName() {
+			return "packetBudget";
+		}
+		public String[] getSyntax() {
+			return new String[]{
+					"set <perTick> <perSecond>",
+					"reset"
+			};
+		}
+		public String getDescription() {
+			return "设置播放时每刻和每秒最多发送的数据包数量（0表示不限制）。超出限制时按优先级丢弃音符。";
+		}
+		public boolean processCommand(String args) {
+			if (args.length() == 0) {
+				return false;
+			}
+
+			String[] split = args.split(" ");
+			switch (split[0].toLowerCase(Locale.ROOT)) {
+				case "set":
+					if (split.length != 3) return false;
+					int perTick;
+					int perSecond;
+					try {
+						perTick = Integer.parseInt(split[1]);
+						perSecond = Integer.parseInt(split[2]);
+					} catch (NumberFormatException e) {
+						Util.showChatMessage("§c限制必须是整数");
+						return true;
+					}
+					if (perTick < 0 || perSecond < 0) {
+						Util.showChatMessage("§c限制不能为负数");
+						return true;
+					}
+					Config.getConfig().packetsPerTick = perTick;
+					Config.getConfig().packetsPerSecond = perSecond;
+					Config.saveConfigWithErrorHandling();
+					Util.showChatMessage("§6已将数据包限制设置为 §3" + perTick + " §6个/刻, §3" + perSecond + " §6个/秒");
+					return true;
+				case "reset":
+					if (split.length != 1) return false;
+					Config.getConfig().packetsPerTick = 0;
+					Config.getConfig().packetsPerSecond = 0;
+					Config.saveConfigWithErrorHandling();
+					Util.showChatMessage("§6已取消数据包限制");
+					return true;
+				default:
+					return false;
+			}
+		}
+		public CompletableFuture<Suggestions> getSuggestions(String args, SuggestionsBuilder suggestionsBuilder) {
+			String[] split = args.split(" ", -1);
+			if (split.length <= 1) {
+				return CommandSource.suggestMatching(new String[]{
+						"set",
+						"reset",
+				}, suggestionsBuilder);
+			} else {
+				return null;
+			}
+		}
+	}
+
+	private static class dedupWindowCommand extends Command {
+		public String getName() {
+			return "dedupWindow";
+		}
+		public String[] getSyntax() {
+			return new String[]{
+					"set <milliseconds>",
+					"reset"
+			};
+		}
+		public String getDescription() {
+			return "设置加载midi时合并重复音符的时间窗口（毫秒）。0表示只合并同一时间的重复音符。";
+		}
+		public boolean processCommand(String args) {
+			if (args.length() == 0) {
+				return false;
+			}
+
+			String[] split = args.split(" ");
+			switch (split[0].toLowerCase(Locale.ROOT)) {
+				case "set":
+					if (split.length != 2) return false;
+					int window;
+					try {
+						window = Integer.parseInt(split[1]);
+					} catch (NumberFormatException e) {
+						Util.showChatMessage("§c时间窗口必须是整数");
+						return true;
+					}
+					if (window < 0) {
+						Util.showChatMessage("§c时间窗口不能为负数");
+						return true;
+					}
+					Config.getConfig().dedupWindow = window;
+					Config.saveConfigWithErrorHandling();
+					Util.showChatMessage("§6已将去重时间窗口设置为 §3" + window + " §6毫秒");
+					return true;
+				case "reset":
+					if (split.length != 1) return false;
+					Config.getConfig().dedupWindow = 0;
+					Config.saveConfigWithErrorHandling();
+					Util.showChatMessage("§6已重置去重时间窗口为 §30 §6毫秒");
+					return true;
+				default:
+					return false;
+			}
+		}
+		public CompletableFuture<Suggestions> getSuggestions(String args, SuggestionsBuilder suggestionsBuilder) {
+			String[] split = args.split(" ", -1);
+			if (split.length <= 1) {
+				return CommandSource.suggestMatching(new String[]{
+						"set",
+						"reset",
+				}, suggestionsBuilder);
+			} else {
+				return null;
+			}
+		}
+	}
+
+	private static class songCacheCommand extends Command {
+		public String getName() {
+			return "songCache";
+		}
+		public String[] getSyntax() {
+			return new String[]{
+					"info",
+					"clear",
+					"setMaxSize <megabytes>"
+			};
+		}
+		public String getDescription() {
+			return "查看或清除已转换歌曲的缓存，或设置缓存的最大大小（0表示禁用缓存）";
+		}
+		public boolean processCommand(String args) {
+			if (args.length() == 0) {
+				return false;
+			}
+
+			String[] split = args.split(" ");
+			try {
+				switch (split[0].toLowerCase(Locale.ROOT)) {
+					case "info":
+						if (split.length != 1) return false;
+						Util.showChatMessage(String.format("§6歌曲缓存: §3%d §6首歌曲, §3%.1f§6/%d MB",
+								SongCache.getEntryCount(), SongCache.getTotalSize() / (1024.0 * 1024.0), Config.getConfig().songCacheMaxSize));
+						return true;
+					case "clear":
+						if (split.length != 1) return false;
+						int deleted = SongCache.clear();
+						Util.showChatMessage("§6已清除 §3" + deleted + " §6首缓存的歌曲");
+						return true;
+					case "setmaxsize":
+						if (split.length != 2) return false;
+						int maxSize;
+						try {
+							maxSize = Integer.parseInt(split[1]);
+						} catch (NumberFormatException e) {
+							Util.showChatMessage("§c大小必须是整数");
+							return true;
+						}
+						if (maxSize < 0) {
+							Util.showChatMessage("§c大小不能为负数");
+							return true;
+						}
+						Config.getConfig().songCacheMaxSize = maxSize;
+						Config.saveConfigWithErrorHandling();
+						SongCache.evict(maxSize * 1024L * 1024L);
+						if (maxSize == 0) {
+							Util.showChatMessage("§6已禁用歌曲缓存");
+						} else {
+							Util.showChatMessage("§6已将歌曲缓存最大大小设置为 §3" + maxSize + " §6MB");
+						}
+						return true;
+					default:
+						return false;
+				}
+			} catch (IOException e) {
+				Util.showChatMessage("§c访问歌曲缓存时出错: §4" + e.getMessage());
+				return true;
+			}
+		}
+		public CompletableFuture<Suggestions> getSuggestions(String args, SuggestionsBuilder suggestionsBuilder) {
+			String[] split = args.split(" ", -1);
+			if (split.length <= 1) {
+				return CommandSource.suggestMatching(new String[]{
+						"info",
+						"clear",
+						"setMaxSize",
+				}, suggestionsBuilder);
+			} else {
+				return null;
+			}
+		}
+	}
+
+	private static class libraryCommand extends Command {
+		private static final int MAX_SEARCH_RESULTS = 20;
+
+		public String getName() {
+			return "library";
+		}
+		public String[] getSyntax() {
+			return new String[]{
+					"",
+					"info <song>",
+					"search <text>",
+					"refresh",
+			};
+		}
+		public String getDescription() {
+			return "查看歌曲库的索引，查看歌曲的详细信息，或按名称搜索歌曲";
+		}
+		public boolean processCommand(String args) {
+			SongLibrary library = SongLibrary.getInstance();
+			if (args.length() == 0) {
+				Util.showChatMessage(String.format("§6歌曲库: §3%d §6首歌曲, 已索引 §3%d §6首, 无法加载 §3%d §6首",
+						library.getSongCount(), library.getIndexedCount(), library.getFailedCount()));
+				return true;
+			}
+
+			String[] split = args.split(" ", 2);
+			switch (split[0].toLowerCase(Locale.ROOT)) {
+				case "info": {
+					if (split.length != 2) return false;
+					SongLibrary.Entry entry = library.getEntry(split[1]);
+					if (entry == null) {
+						Util.showChatMessage("§c歌曲库中没有这首歌曲");
+						return true;
+					}
+					Util.showChatMessage("§6----------------------------------------");
+					Util.showChatMessage("§e" + entry.path);
+					if (!entry.indexed) {
+						Util.showChatMessage("§6尚未索引");
+					}
+					else if (entry.error != null) {
+						Util.showChatMessage("§c无法加载: §4" + entry.error);
+					}
+					else {
+						Util.showChatMessage("§6名称: §3" + entry.name);
+						Util.showChatMessage("§6格式: §3" + entry.format);
+						Util.showChatMessage("§6时长: §3" + Util.formatTime(entry.duration));
+						Util.showChatMessage(String.format("§6音符: §3%d §6(平均 §3%.1f §6/秒, 峰值 §3%d §6/秒)",
+								entry.noteCount, entry.averageNotesPerSecond, entry.peakNotesPerSecond));
+						Util.showChatMessage("§6不同音符: §3" + entry.distinctNotes);
+						Util.showChatMessage("§6乐器: §3" + String.join(", ", entry.instruments));
+					}
+					Util.showChatMessage("§6----------------------------------------");
+					return true;
+				}
+				case "search": {
+					if (split.length != 2) return false;
+					List<SongLibrary.Entry> results = library.search(split[1]);
+					if (results.isEmpty()) {
+						Util.showChatMessage("§6没有找到匹配的歌曲");
+						return true;
+					}
+					Util.showChatMessage("§6----------------------------------------");
+					Util.showChatMessage("§6找到 §3" + results.size() + " §6首歌曲");
+					for (SongLibrary.Entry entry : results.subList(0, Math.min(results.size(), MAX_SEARCH_RESULTS))) {
+						if (entry.indexed && entry.error == null) {
+							Util.showChatMessage(String.format("§7%s §6(%s, %d 个音符)", entry.path, Util.formatTime(entry.duration), entry.noteCount));
+						}
+						else {
+							Util.showChatMessage("§7" + entry.path);
+						}
+					}
+					if (results.size() > MAX_SEARCH_RESULTS) {
+						Util.showChatMessage("§6还有 §3" + (results.size() - MAX_SEARCH_RESULTS) + " §6首歌曲未显示");
+					}
+					Util.showChatMessage("§6----------------------------------------");
+					return true;
+				}
+				case "refresh": {
+					if (split.length != 1) return false;
+					library.refresh();
+					Util.showChatMessage("§6正在刷新歌曲库");
+					return true;
+				}
+				default: {
+					return false;
+				}
+			}
+		}
+		public CompletableFuture<Suggestions> getSuggestions(String args, SuggestionsBuilder suggestionsBuilder) {
+			String[] split = args.split(" ", 2);
+			if (split.length <= 1) {
+				return CommandSource.suggestMatching(new String[]{
+						"info",
+						"search",
+						"refresh",
+				}, suggestionsBuilder);
+			}
+			if (split[0].equalsIgnoreCase("info")) {
+				return Util.giveSongSuggestions(split[1], suggestionsBuilder);
+			}
+			return null;
+		}
+	}
+
 	private static class songItemCommand extends Command {
 		public String getName() {
 			return "songItem";
@@ -1346,7 +1766,7 @@ public class CommandProcessor {
 					if (split.length < 2) return false;
 					String location = String.join(" ", Arrays.copyOfRange(split, 1, split.length));
 					try {
-						(new SongItemCreatorThread(location)).start();
+						SongLoader.load(new SongItemCreateTask(location));
 					} catch (IOException e) {
 						Util.showChatMessage("§c创建歌曲物品时出错: §4" + e.getMessage());
 					}
@@ -1356,11 +1776,19 @@ public class CommandProcessor {
 
 					if (SongItemUtils.isSongItem(stack)) {
 						String name = String.join(" ", Arrays.copyOfRange(split, 1, split.length));
-						SongItemUtils.updateSongItemTag(stack, (songItemTag) -> songItemTag.putString(SongItemUtils.DISPLAY_NAME_KEY, name));
-						SongItemUtils.addSongItemDisplay(stack);
-						MC.player.setStackInHand(Hand.MAIN_HAND, stack);
-						MC.interactionManager.clickCreativeStack(MC.player.getStackInHand(Hand.MAIN_HAND), 36 + MC.player.getInventory().getSelectedSlot());
-						Util.showChatMessage("§6已将歌曲显示名称设置为 §3" + name);
+						// The name of a song split over several items is read from whichever chunk is used, so every chunk is renamed
+						List<Integer> slots = SongItemUtils.findSongItemSlots(MC.player.getInventory(), MC.player.getInventory().getSelectedSlot());
+						for (int slot : slots) {
+							ItemStack songItem = MC.player.getInventory().getStack(slot);
+							SongItemUtils.updateSongItemTag(songItem, (songItemTag) -> songItemTag.putString(SongItemUtils.DISPLAY_NAME_KEY, name));
+							SongItemUtils.addSongItemDisplay(songItem);
+							SongItemUtils.setInventoryStack(slot, songItem);
+						}
+						if (slots.size() > 1) {
+							Util.showChatMessage(String.format("§6已将 §3%d §6个物品的歌曲显示名称设置为 §3%s", slots.size(), name));
+						} else {
+							Util.showChatMessage("§6已将歌曲显示名称设置为 §3" + name);
+						}
 						return true;
 					} else {
 						Util.showChatMessage("§c您必须手持一个歌曲物品");
@@ -1405,7 +1833,7 @@ public class CommandProcessor {
 			if (args.length() == 0) {
 				Song song = new Song("test_song");
 				for (int i=0; i<400; i++) {
-					song.add(new Note(i, i*50));
+					song.add(i, i*50, 100);
 				}
 				song.length = 400*50;
 				SongHandler.getInstance().setSong(song);
@@ -32,6 +32,14 @@ public class Config {
     public boolean autoCleanup = false;
     public boolean survivalOnly = false;
     public boolean flightNoclip = false;
+    public boolean precisePlayback = false;
+    public int packetsPerTick = 0; // 0 means unlimited
+    public int packetsPerSecond = 0; // 0 means unlimited
+    public int songCacheMaxSize = 256; // Megabytes. 0 disables the song cache.
+    public int playlistPrefetchCount = 2; // Number of upcoming playlist songs loaded ahead of time
+    public int playlistMemoryBudget = 128; // Megabytes of loaded playlist songs, beyond which played songs are unloaded
+    public boolean playlistUnionStage = false; // Build one stage for the notes of all songs in a playlist
+    public int dedupWindow = 0; // Milliseconds within which repeated midi notes are merged. 0 only merges notes at the same time.
 
     public static Config getConfig() {
         if (config == null) {
@@ -1,5 +1,6 @@
 package com.github.hhhzzzsss.songplayer;
 
+import com.github.hhhzzzsss.songplayer.song.SongLibrary;
 import net.fabricmc.api.ModInitializer;
 import net.minecraft.block.Block;
 import net.minecraft.block.Blocks;
@@ -28,6 +29,7 @@ public class SongPlayer implements ModInitializer {
 			Util.createDirectoriesSilently(PLAYLISTS_DIR);
 		}
 
+		SongLibrary.getInstance().start();
 		CommandProcessor.initCommands();
 	}
 }
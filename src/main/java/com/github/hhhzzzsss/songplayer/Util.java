@@ -1,5 +1,6 @@
 package com.github.hhhzzzsss.songplayer;
 
+import com.github.hhhzzzsss.songplayer.song.SongLibrary;
 import com.mojang.brigadier.suggestion.Suggestions;
 import com.mojang.brigadier.suggestion.SuggestionsBuilder;
 import net.minecraft.client.MinecraftClient;
@@ -15,6 +16,7 @@ import net.minecraft.util.WorldSavePath;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
@@ -82,6 +84,45 @@ public class Util {
         }
     }
 
+    // Reads the remaining bytes of a buffer without copying them first, which also works for memory-mapped files
+    public static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        public ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer.duplicate();
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte b[], int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
     // Time
 
     public static String formatTime(long milliseconds) {
@@ -141,13 +182,6 @@ public class Util {
             }
         }
 
-        Stream<Path> songFiles;
-        try {
-            songFiles = Files.list(dir);
-        } catch (IOException e) {
-            return null;
-        }
-
         int clipStart;
         if (arg.contains(" ")) {
             clipStart = arg.lastIndexOf(" ") + 1;
@@ -157,12 +191,30 @@ public class Util {
         }
 
         ArrayList<String> suggestionsList = new ArrayList<>();
-        for (Path path : songFiles.collect(Collectors.toList())) {
-            if (Files.isRegularFile(path)) {
-                suggestionsList.add(dirString + path.getFileName().toString());
+        SongLibrary library = SongLibrary.getInstance();
+        if (library.isReady() && library.hasDirectory(dirString)) {
+            // The library index is listed instead of the folder, which stays fast with lots of songs
+            for (String song : library.getSongs(dirString)) {
+                suggestionsList.add(dirString + song);
+            }
+            for (String subdirectory : library.getSubdirectories(dirString)) {
+                suggestionsList.add(dirString + subdirectory);
+            }
+        }
+        else {
+            Stream<Path> songFiles;
+            try {
+                songFiles = Files.list(dir);
+            } catch (IOException e) {
+                return null;
             }
-            else if (Files.isDirectory(path)) {
-                suggestionsList.add(dirString + path.getFileName().toString() + "/");
+            for (Path path : songFiles.collect(Collectors.toList())) {
+                if (Files.isRegularFile(path)) {
+                    suggestionsList.add(dirString + path.getFileName().toString());
+                }
+                else if (Files.isDirectory(path)) {
+                    suggestionsList.add(dirString + path.getFileName().toString() + "/");
+                }
             }
         }
         Stream<String> suggestions = suggestionsList.stream()
@@ -202,13 +254,6 @@ public class Util {
             dirString = "";
         }
 
-        Stream<Path> songFiles;
-        try {
-            songFiles = Files.list(dir);
-        } catch (IOException e) {
-            return null;
-        }
-
         int clipStart;
         if (arg.contains(" ")) {
             clipStart = arg.lastIndexOf(" ") + 1;
@@ -217,9 +262,23 @@ public class Util {
             clipStart = 0;
         }
 
-        Stream<String> suggestions = songFiles
-                .filter(Files::isDirectory)
-                .map(path -> dirString + path.getFileName().toString() + "/")
+        Stream<String> directories;
+        SongLibrary library = SongLibrary.getInstance();
+        if (library.isReady() && library.hasDirectory(dirString)) {
+            directories = library.getSubdirectories(dirString).stream()
+                    .map(subdirectory -> dirString + subdirectory);
+        }
+        else {
+            try {
+                directories = Files.list(dir)
+                        .filter(Files::isDirectory)
+                        .map(path -> dirString + path.getFileName().toString() + "/");
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        Stream<String> suggestions = directories
                 .filter(str -> str.startsWith(arg))
                 .map(str -> str.substring(clipStart));
         return CommandSource.suggestMatching(suggestions, suggestionsBuilder);
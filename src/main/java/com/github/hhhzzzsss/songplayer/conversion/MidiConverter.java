@@ -1,22 +1,31 @@
 package com.github.hhhzzzsss.songplayer.conversion;
 
+import com.github.hhhzzzsss.songplayer.Config;
 import com.github.hhhzzzsss.songplayer.song.DownloadUtils;
 import com.github.hhhzzzsss.songplayer.song.Instrument;
 import com.github.hhhzzzsss.songplayer.song.Note;
+import com.github.hhhzzzsss.songplayer.song.NoteStore;
 import com.github.hhhzzzsss.songplayer.song.Song;
 
-import javax.sound.midi.*;
-import java.io.ByteArrayInputStream;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MidiConverter {
 
@@ -29,203 +38,353 @@ public class MidiConverter {
 	public static final int NOTE_ON = 0x90;
     public static final int NOTE_OFF = 0x80;
 
-	public static Song getSongFromUrl(URL url) throws IOException, InvalidMidiDataException, URISyntaxException, NoSuchAlgorithmException, KeyManagementException {
-		Sequence sequence = MidiSystem.getSequence(DownloadUtils.DownloadToInputStream(url, 5*1024*1024));
-		return getSong(sequence, Paths.get(url.toURI().getPath()).getFileName().toString());
+	// Files with fewer events than this are converted on the calling thread, since handing them off costs more than it saves
+	private static final int PARALLEL_THRESHOLD = 20000;
+	private static final int PROGRESS_EVENT_BATCH = 1000;
+	private static final long PROGRESS_INTERVAL_MS = 50;
+	private static final ForkJoinPool CONVERSION_POOL = new ForkJoinPool(
+			Math.max(1, Runtime.getRuntime().availableProcessors() - 1),
+			pool -> {
+				ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+				thread.setName("Midi Converter " + thread.getPoolIndex());
+				return thread;
+			},
+			null, false);
+
+	public static Song getSongFromUrl(URL url) throws IOException, URISyntaxException, NoSuchAlgorithmException, KeyManagementException {
+		byte[] bytes;
+		try (InputStream is = DownloadUtils.DownloadToInputStream(url, 5*1024*1024)) {
+			bytes = is.readAllBytes();
+		}
+		return getSongFromBytes(bytes, Paths.get(url.toURI().getPath()).getFileName().toString());
+	}
+
+	public static Song getSongFromFile(Path file) throws IOException {
+		return getSongFromBytes(Files.readAllBytes(file), file.getFileName().toString());
 	}
 
-	public static Song getSongFromFile(Path file) throws InvalidMidiDataException, IOException {
-		Sequence sequence = MidiSystem.getSequence(file.toFile());
-		return getSong(sequence, file.getFileName().toString());
+	public static Song getSongFromBytes(byte[] bytes, String name) throws IOException {
+		return getSongFromBytes(bytes, name, null);
 	}
 
-	public static Song getSongFromBytes(byte[] bytes, String name) throws InvalidMidiDataException, IOException {
-		Sequence sequence = MidiSystem.getSequence(new ByteArrayInputStream(bytes));
-		return getSong(sequence, name);
+	public static Song getSongFromBytes(byte[] bytes, String name, ProgressCallback progressCallback) throws IOException {
+		return getSongFromBuffer(ByteBuffer.wrap(bytes), name, progressCallback);
 	}
 
-	public static Song getSongFromBytes(byte[] bytes, String name, ProgressCallback progressCallback) throws InvalidMidiDataException, IOException {
-		Sequence sequence = MidiSystem.getSequence(new ByteArrayInputStream(bytes));
-		return getSong(sequence, name, progressCallback);
+	public static Song getSongFromBuffer(ByteBuffer data, String name, ProgressCallback progressCallback) throws IOException {
+		return getSong(MidiParser.parse(data), name, progressCallback);
 	}
-    
-	public static Song getSong(Sequence sequence, String name) {
+
+	public static Song getSong(Sequence sequence, String name) throws IOException {
 		return getSong(sequence, name, null);
 	}
 
-	public static Song getSong(Sequence sequence, String name, ProgressCallback progressCallback) {
+	// Kept for callers that already have a Sequence. It's written back out as a midi file and parsed like any other.
+	public static Song getSong(Sequence sequence, String name, ProgressCallback progressCallback) throws IOException {
+		int[] fileTypes = MidiSystem.getMidiFileTypes(sequence);
+		if (fileTypes.length == 0) {
+			throw new IOException("Sequence can't be written as a midi file");
+		}
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		MidiSystem.write(sequence, fileTypes[fileTypes.length - 1], os);
+		return getSongFromBytes(os.toByteArray(), name, progressCallback);
+	}
+
+	public static Song getSong(MidiParser parser, String name, ProgressCallback progressCallback) throws IOException {
 		Song song  = new Song(name);
 
-		long tpq = sequence.getResolution();
+		if (parser.resolution <= 0) {
+			throw new IOException("Invalid midi resolution: " + parser.resolution);
+		}
+		int numTracks = parser.getTrackCount();
 
 		// 收集所有tempo事件
-		ArrayList<MidiEvent> tempoEvents = new ArrayList<>();
-		for (Track track : sequence.getTracks()) {
-			for (int i = 0; i < track.size(); i++) {
-				MidiEvent event = track.get(i);
-				MidiMessage message = event.getMessage();
-				if (message instanceof MetaMessage) {
-					MetaMessage mm = (MetaMessage) message;
-					if (mm.getType() == SET_TEMPO) {
-						tempoEvents.add(event);
+		// Tempo changes are stored as their tick and raw value, or -1 if the event is too short to hold a tempo
+		long[] tempoTicks = new long[16];
+		int[] tempoValues = new int[16];
+		int tempoCount = 0;
+		long lastTick = 0;
+		// 计算总事件数用于进度显示
+		int totalEvents = 0;
+		for (int trackIndex = 0; trackIndex < numTracks; trackIndex++) {
+			MidiParser.TrackReader reader = parser.getTrack(trackIndex);
+			while (reader.next()) {
+				totalEvents++;
+				if (reader.isMeta() && reader.metaType == SET_TEMPO) {
+					if (tempoCount == tempoTicks.length) {
+						tempoTicks = Arrays.copyOf(tempoTicks, tempoCount * 2);
+						tempoValues = Arrays.copyOf(tempoValues, tempoCount * 2);
 					}
+					tempoTicks[tempoCount] = reader.tick;
+					tempoValues[tempoCount] = reader.dataLength >= 3
+							? reader.getDataByte(2) | (reader.getDataByte(1) << 8) | (reader.getDataByte(0) << 16)
+							: -1;
+					tempoCount++;
 				}
 			}
+			lastTick = Math.max(lastTick, reader.tick);
 		}
+		// A broken tempo event only matters if anything comes after it
+		for (int i = 0; i < tempoCount; i++) {
+			if (tempoValues[i] < 0 && tempoTicks[i] < lastTick) {
+				throw new IOException("Invalid tempo event at tick " + tempoTicks[i]);
+			}
+		}
+		MidiTempoMap tempoMap = new MidiTempoMap(parser.resolution, tempoTicks, tempoValues, tempoCount);
 
-		Collections.sort(tempoEvents, (a, b) -> Long.compare(a.getTick(), b.getTick()));
-
-		// 计算总事件数用于进度显示
-		int totalEvents = 0;
-		for (Track track : sequence.getTracks()) {
-			totalEvents += track.size();
+		// Tracks don't share any state apart from the tempo map, so each one is converted into its own sorted run
+		TrackConversion[] conversions = new TrackConversion[numTracks];
+		AtomicInteger processedEvents = new AtomicInteger();
+		for (int trackIndex = 0; trackIndex < numTracks; trackIndex++) {
+			conversions[trackIndex] = new TrackConversion(parser.getTrack(trackIndex), tempoMap, processedEvents);
+		}
+		if (numTracks > 1 && totalEvents >= PARALLEL_THRESHOLD) {
+			convertInParallel(conversions, processedEvents, totalEvents, progressCallback);
+		}
+		else {
+			for (TrackConversion conversion : conversions) {
+				// Nothing is waiting on another thread here, so the conversion reports progress itself
+				conversion.reportProgressTo(progressCallback, totalEvents);
+				conversion.call();
+			}
 		}
-		int processedEvents = 0;
 
 		// 统计信息
 		int totalNotes = 0;
 		int convertedNotes = 0;
 		int skippedNotes = 0;
+		long[][] runs = new long[numTracks][];
+		int[] runLengths = new int[numTracks];
+		for (int trackIndex = 0; trackIndex < numTracks; trackIndex++) {
+			TrackConversion conversion = conversions[trackIndex];
+			totalNotes += conversion.totalNotes;
+			convertedNotes += conversion.convertedNotes;
+			skippedNotes += conversion.skippedNotes;
+			song.length = Math.max(song.length, conversion.length);
+			runs[trackIndex] = conversion.keys;
+			runLengths[trackIndex] = conversion.size;
+		}
 
-		// 使用HashMap存储每个轨道和通道的乐器ID，去除16通道限制
-		HashMap<String, Integer> instrumentIds = new HashMap<>();
-
-		int trackIndex = 0;
-		for (Track track : sequence.getTracks()) {
-			long microTime = 0;
-			int mpq = 500000;
-			int tempoEventIdx = 0;
-			long prevTick = 0;
-
-			for (int i = 0; i < track.size(); i++) {
-				MidiEvent event = track.get(i);
-				MidiMessage message = event.getMessage();
-
-				// 更新tempo
-				while (tempoEventIdx < tempoEvents.size() && event.getTick() > tempoEvents.get(tempoEventIdx).getTick()) {
-					long deltaTick = tempoEvents.get(tempoEventIdx).getTick() - prevTick;
-					prevTick = tempoEvents.get(tempoEventIdx).getTick();
-					microTime += (mpq/tpq) * deltaTick;
-
-					MetaMessage mm = (MetaMessage) tempoEvents.get(tempoEventIdx).getMessage();
-					byte[] data = mm.getData();
-					int new_mpq = (data[2]&0xFF) | ((data[1]&0xFF)<<8) | ((data[0]&0xFF)<<16);
-					if (new_mpq != 0) mpq = new_mpq;
-					tempoEventIdx++;
-				}
+		// 最终进度更新，包含统计信息
+		if (progressCallback != null) {
+			progressCallback.onProgress(100, totalEvents, totalEvents);
+		}
+
+		song.notes.addSortedRuns(runs, runLengths);
+
+		// Merge duplicate hits from doubled tracks and layered channels
+		int duplicateNotes = song.notes.deduplicate(Config.getConfig().dedupWindow);
+
+		// 存储转换统计信息到Song对象（如果需要）
+		song.conversionStats = String.format("总音符: %d, 已转换: %d, 已跳过: %d (%.1f%%), 已去重: %d",
+			totalNotes, convertedNotes, skippedNotes,
+			totalNotes > 0 ? (skippedNotes * 100.0 / totalNotes) : 0,
+			duplicateNotes);
 
-				if (message instanceof ShortMessage) {
-					ShortMessage sm = (ShortMessage) message;
-					String channelKey = trackIndex + "_" + sm.getChannel();
+		// Shift to beginning if delay is too long
+		if (!song.notes.isEmpty()) {
+			long shift = song.notes.getTime(0) - 1000;
+			if (song.notes.getTime(0) > 1000) {
+				song.notes.shiftTimes(-shift);
+			}
+			song.length -= shift;
+		}
+		
+		return song;
+	}
 
-					if (sm.getCommand() == SET_INSTRUMENT) {
-						instrumentIds.put(channelKey, sm.getData1());
+	// Runs the conversions on the shared pool, reporting progress from this thread while waiting for them
+	private static void convertInParallel(TrackConversion[] conversions, AtomicInteger processedEvents, int totalEvents, ProgressCallback progressCallback) throws IOException {
+		List<Future<TrackConversion>> futures = new ArrayList<>(conversions.length);
+		for (TrackConversion conversion : conversions) {
+			futures.add(CONVERSION_POOL.submit(conversion));
+		}
+		try {
+			for (Future<TrackConversion> future : futures) {
+				while (true) {
+					try {
+						future.get(PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+						break;
+					}
+					catch (TimeoutException e) {
+						reportProgress(progressCallback, processedEvents.get(), totalEvents);
 					}
-					else if (sm.getCommand() == NOTE_ON) {
-						int pitch = sm.getData1();
-						int velocity = sm.getData2();
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Midi conversion was interrupted", e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException ioException) {
+				throw ioException;
+			}
+			if (e.getCause() instanceof Error error) {
+				throw error;
+			}
+			throw new IOException(e.getCause());
+		}
+		finally {
+			for (Future<TrackConversion> future : futures) {
+				future.cancel(false);
+			}
+		}
+	}
 
-						// 先计入总音符数
-						totalNotes++;
+	private static void reportProgress(ProgressCallback progressCallback, int processed, int totalEvents) {
+		if (progressCallback != null) {
+			progressCallback.onProgress((int) ((processed * 100.0) / totalEvents), processed, totalEvents);
+		}
+	}
 
-						// 忽略velocity为0的音符（在MIDI中velocity=0相当于NOTE_OFF）
-						if (velocity == 0) {
-							skippedNotes++;
-							continue;
-						}
+	/**
+	 * Converts the notes of a single track into packed note keys (see {@link NoteStore#packKey}) sorted by time.
+	 * Only reads shared state, so conversions of different tracks can run concurrently.
+	 */
+	private static class TrackConversion implements Callable<TrackConversion> {
+		private final MidiParser.TrackReader reader;
+		private final MidiTempoMap tempoMap;
+		private final AtomicInteger processedEvents;
+		private ProgressCallback progressCallback = null;
+		private int totalEvents = 0;
+		private long nextProgressTime = 0;
+
+		long[] keys = new long[64];
+		int size = 0;
+		long length = 0;
+		int totalNotes = 0;
+		int convertedNotes = 0;
+		int skippedNotes = 0;
 
-						// 转换velocity: MIDI范围0-127 -> Minecraft范围0-100
-						velocity = (velocity * 100) / 127;
+		TrackConversion(MidiParser.TrackReader reader, MidiTempoMap tempoMap, AtomicInteger processedEvents) {
+			this.reader = reader;
+			this.tempoMap = tempoMap;
+			this.processedEvents = processedEvents;
+		}
 
-						// 如果转换后velocity为0，也跳过（没有声音）
-						if (velocity == 0) {
-							skippedNotes++;
-							continue;
-						}
+		// Makes the conversion report progress every PROGRESS_INTERVAL_MS, for when it runs on the calling thread
+		void reportProgressTo(ProgressCallback progressCallback, int totalEvents) {
+			this.progressCallback = progressCallback;
+			this.totalEvents = totalEvents;
+			this.nextProgressTime = System.currentTimeMillis() + PROGRESS_INTERVAL_MS;
+		}
 
-						long deltaTick = event.getTick() - prevTick;
-						prevTick = event.getTick();
-						microTime += (mpq/tpq) * deltaTick;
+		@Override
+		public TrackConversion call() throws IOException {
+			// Program of each channel of this track
+			int[] instrumentIds = new int[16];
+			boolean sorted = true;
+			int unreportedEvents = 0;
+
+			while (reader.next()) {
+				if (++unreportedEvents == PROGRESS_EVENT_BATCH) {
+					int processed = processedEvents.addAndGet(unreportedEvents);
+					unreportedEvents = 0;
+					if (progressCallback != null && System.currentTimeMillis() >= nextProgressTime) {
+						reportProgress(progressCallback, processed, totalEvents);
+						nextProgressTime = System.currentTimeMillis() + PROGRESS_INTERVAL_MS;
+					}
+				}
 
-						Note note = null;
-						if (sm.getChannel() == 9) {
-							// 打击乐通道
-							note = getMidiPercussionNote(pitch, velocity, microTime);
-						}
-						else {
-							// 旋律乐器通道
-							int instrumentId = instrumentIds.getOrDefault(channelKey, 0);
-							note = getMidiInstrumentNote(instrumentId, pitch, velocity, microTime);
-						}
+				int command = reader.getCommand();
+				if (command == 0xF0) {
+					continue;
+				}
+				if (command == SET_INSTRUMENT) {
+					instrumentIds[reader.getChannel()] = reader.data1;
+				}
+				else if (command == NOTE_ON) {
+					int pitch = reader.data1;
+					int velocity = reader.data2;
 
-						// 只添加成功转换的音符
-						if (note != null) {
-							song.add(note);
-							convertedNotes++;
-						} else {
-							// 无法转换的音符（超出Minecraft音符盒范围或无对应乐器）
-							skippedNotes++;
-						}
+					// 先计入总音符数
+					totalNotes++;
 
-						long time = microTime / 1000L;
-						if (time > song.length) {
-							song.length = time;
-						}
+					// 忽略velocity为0的音符（在MIDI中velocity=0相当于NOTE_OFF）
+					if (velocity == 0) {
+						skippedNotes++;
+						continue;
 					}
-					else if (sm.getCommand() == NOTE_OFF) {
-						long deltaTick = event.getTick() - prevTick;
-						prevTick = event.getTick();
-						microTime += (mpq/tpq) * deltaTick;
-						long time = microTime / 1000L;
-						if (time > song.length) {
-							song.length = time;
-						}
+
+					// 转换velocity: MIDI范围0-127 -> Minecraft范围0-100
+					velocity = (velocity * 100) / 127;
+
+					// 如果转换后velocity为0，也跳过（没有声音）
+					if (velocity == 0) {
+						skippedNotes++;
+						continue;
 					}
-				}
 
-				// 更新进度
-				processedEvents++;
-				if (progressCallback != null && processedEvents % 100 == 0) {
-					int progress = (int) ((processedEvents * 100.0) / totalEvents);
-					progressCallback.onProgress(progress, processedEvents, totalEvents);
+					long time = tempoMap.getMillis(reader.tick);
 
-					// 定期让出CPU时间，避免阻塞游戏主线程
-					if (processedEvents % 1000 == 0) {
-						Thread.yield();
+					int noteId;
+					if (reader.getChannel() == 9) {
+						// 打击乐通道
+						noteId = getMidiPercussionNoteId(pitch);
+					}
+					else {
+						// 旋律乐器通道
+						noteId = getMidiInstrumentNoteId(instrumentIds[reader.getChannel()], pitch);
 					}
+
+					// 只添加成功转换的音符
+					if (noteId >= 0) {
+						if (size == keys.length) {
+							keys = Arrays.copyOf(keys, size + (size >> 1));
+						}
+						// Data bytes of malformed files can exceed 127, which NoteStore.add would have clamped
+						long key = NoteStore.packKey(time, noteId, Math.min(velocity, 127));
+						// Times only increase within a track, but notes at the same time can come in any order
+						if (size > 0 && key < keys[size-1]) {
+							sorted = false;
+						}
+						keys[size++] = key;
+						convertedNotes++;
+					} else {
+						// 无法转换的音符（超出Minecraft音符盒范围或无对应乐器）
+						skippedNotes++;
+					}
+
+					length = Math.max(length, time);
+				}
+				else if (command == NOTE_OFF) {
+					length = Math.max(length, tempoMap.getMillis(reader.tick));
 				}
 			}
+			processedEvents.addAndGet(unreportedEvents);
 
-			trackIndex++;
+			if (!sorted) {
+				Arrays.sort(keys, 0, size);
+			}
+			return this;
 		}
+	}
 
-		// 最终进度更新，包含统计信息
-		if (progressCallback != null) {
-			progressCallback.onProgress(100, totalEvents, totalEvents);
+	public static Note getMidiInstrumentNote(int midiInstrument, int midiPitch, int velocity, long microTime) {
+		int noteId = getMidiInstrumentNoteId(midiInstrument, midiPitch);
+		if (noteId < 0) {
+			return null;
 		}
+		return new Note(noteId, microTime / 1000L, velocity);
+	}
 
-		// 存储转换统计信息到Song对象（如果需要）
-		song.conversionStats = String.format("总音符: %d, 已转换: %d, 已跳过: %d (%.1f%%)",
-			totalNotes, convertedNotes, skippedNotes,
-			totalNotes > 0 ? (skippedNotes * 100.0 / totalNotes) : 0);
-
-		song.sort();
+	// Returns -1 if the pitch can't be played by any of the instrument's candidate noteblock instruments
+	public static int getMidiInstrumentNoteId(int midiInstrument, int midiPitch) {
+		if (midiInstrument < 0 || midiInstrument >= 128 || midiPitch < 0 || midiPitch >= 128) {
+			return -1;
+		}
+		return instrumentNoteIds[(midiInstrument << 7) | midiPitch];
+	}
 
-		// Shift to beginning if delay is too long
-		if (!song.notes.isEmpty()) {
-			long shift = song.notes.get(0).time - 1000;
-			if (song.notes.get(0).time > 1000) {
-				for (Note note : song.notes) {
-					note.time -= shift;
-				}
-			}
-			song.length -= shift;
+	private static int getMidiPercussionNoteId(int midiPitch) {
+		if (midiPitch < 0 || midiPitch >= 128) {
+			return -1;
 		}
-		
-		return song;
+		return percussionNoteIds[midiPitch];
 	}
 
-	public static Note getMidiInstrumentNote(int midiInstrument, int midiPitch, int velocity, long microTime) {
+	private static int findMidiInstrumentNoteId(int midiInstrument, int midiPitch) {
 		com.github.hhhzzzsss.songplayer.song.Instrument instrument = null;
 		com.github.hhhzzzsss.songplayer.song.Instrument[] instrumentList = instrumentMap.get(midiInstrument);
 		if (instrumentList != null) {
@@ -238,24 +397,11 @@ public class MidiConverter {
 		}
 
 		if (instrument == null) {
-			return null;
+			return -1;
 		}
 
 		int pitch = midiPitch-instrument.offset;
-		int noteId = pitch + instrument.instrumentId*25;
-		long time = microTime / 1000L;
-
-		return new Note(noteId, time, velocity);
-	}
-
-	private static Note getMidiPercussionNote(int midiPitch, int velocity, long microTime) {
-		if (percussionMap.containsKey(midiPitch)) {
-			int noteId = percussionMap.get(midiPitch);
-			long time = microTime / 1000L;
-
-			return new Note(noteId, time, velocity);
-		}
-		return null;
+		return pitch + instrument.instrumentId*25;
 	}
 
 	public static HashMap<Integer, com.github.hhhzzzsss.songplayer.song.Instrument[]> instrumentMap = new HashMap<>();
@@ -467,4 +613,32 @@ public class MidiConverter {
 		percussionMap.put(86, 14 + 25* com.github.hhhzzzsss.songplayer.song.Instrument.BASEDRUM.instrumentId);
 		percussionMap.put(87, 7  + 25* Instrument.BASEDRUM.instrumentId);
 	}
+
+	/*
+	 * The maps above are flattened into tables once, so that converting a note is a single array lookup.
+	 * instrumentNoteIds is indexed by program*128 + pitch, and both tables hold -1 where nothing can play the note.
+	 */
+	private static final short[] instrumentNoteIds = buildInstrumentNoteIds();
+	private static final int[] percussionNoteIds = buildPercussionNoteIds();
+
+	private static short[] buildInstrumentNoteIds() {
+		short[] table = new short[128*128];
+		for (int program = 0; program < 128; program++) {
+			for (int pitch = 0; pitch < 128; pitch++) {
+				table[(program << 7) | pitch] = (short) findMidiInstrumentNoteId(program, pitch);
+			}
+		}
+		return table;
+	}
+
+	private static int[] buildPercussionNoteIds() {
+		int[] table = new int[128];
+		Arrays.fill(table, -1);
+		percussionMap.forEach((pitch, noteId) -> {
+			if (pitch >= 0 && pitch < 128) {
+				table[pitch] = noteId;
+			}
+		});
+		return table;
+	}
 }
@@ -0,0 +1,248 @@
+package com.github.hhhzzzsss.songplayer.conversion;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Streaming Standard MIDI File parser that decodes events in place from a ByteBuffer, without creating any objects per event.
+ * It follows javax.sound.midi's StandardMidiFileReader closely, quirks included, so that files are accepted, rejected
+ * and interpreted exactly as they were with MidiSystem.getSequence.
+ */
+public class MidiParser {
+	private static final int MTHD_MAGIC = 0x4D546864; // "MThd"
+	private static final int MTRK_MAGIC = 0x4D54726B; // "MTrk"
+
+	public static final int META = 0xFF;
+	public static final int META_END_OF_TRACK = 0x2F;
+
+	private final ByteBuffer buffer;
+	public final int format;
+	public final int resolution; // Ticks per quarter note, or ticks per frame for SMPTE timing
+	private final int[] trackOffsets;
+	private final int[] trackLengths;
+
+	private MidiParser(ByteBuffer buffer, int format, int resolution, int[] trackOffsets, int[] trackLengths) {
+		this.buffer = buffer;
+		this.format = format;
+		this.resolution = resolution;
+		this.trackOffsets = trackOffsets;
+		this.trackLengths = trackLengths;
+	}
+
+	/**
+	 * Reads the header and locates the track chunks. Events are only decoded when a track is read.
+	 * Like javax, unknown chunks are skipped and a truncated track ends the list of tracks without an error.
+	 */
+	public static MidiParser parse(ByteBuffer buffer) throws IOException {
+		buffer = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+		int pos = buffer.position();
+		int limit = buffer.limit();
+
+		if (readInt(buffer, pos, limit) != MTHD_MAGIC) {
+			throw new IOException("not a valid MIDI file");
+		}
+		int bytesRemaining = readInt(buffer, pos + 4, limit) - 6;
+		int format = readShort(buffer, pos + 8, limit);
+		int numTracks = readShort(buffer, pos + 10, limit);
+		int timing = readShort(buffer, pos + 12, limit);
+		pos += 14;
+
+		int resolution;
+		if (timing > 0) {
+			resolution = timing;
+		} else {
+			int frameCode = -1 * (timing >> 8);
+			if (frameCode != 24 && frameCode != 25 && frameCode != 29 && frameCode != 30) {
+				throw new IOException("Unknown frame code: " + frameCode);
+			}
+			resolution = timing & 0xFF;
+		}
+		pos += Math.max(0, Math.min(bytesRemaining, limit - pos));
+
+		if (format != 0 && format != 1) {
+			throw new IOException("Invalid or unsupported file type: " + format);
+		}
+
+		int[] trackOffsets = new int[Math.max(numTracks, 0)];
+		int[] trackLengths = new int[trackOffsets.length];
+		int trackCount = 0;
+		trackLoop:
+		for (int i = 0; i < numTracks; i++) {
+			int magic;
+			int trackLength = 0;
+			do {
+				if (trackLength < 0 || trackLength > limit - pos) {
+					break trackLoop;
+				}
+				pos += trackLength;
+				magic = readInt(buffer, pos, limit);
+				trackLength = readInt(buffer, pos + 4, limit);
+				pos += 8;
+			} while (magic != MTRK_MAGIC);
+			if (trackLength < 0 || trackLength > limit - pos) {
+				break;
+			}
+			trackOffsets[trackCount] = pos;
+			trackLengths[trackCount] = trackLength;
+			trackCount++;
+			pos += trackLength;
+		}
+
+		return new MidiParser(buffer, format, resolution,
+				Arrays.copyOf(trackOffsets, trackCount), Arrays.copyOf(trackLengths, trackCount));
+	}
+
+	public int getTrackCount() {
+		return trackOffsets.length;
+	}
+
+	public TrackReader getTrack(int track) {
+		return new TrackReader(trackOffsets[track], trackOffsets[track] + trackLengths[track]);
+	}
+
+	/**
+	 * Cursor over the events of a track. Fields describe the current event and are overwritten by {@link #next()}.
+	 */
+	public class TrackReader {
+		private int pos;
+		private final int end;
+		private boolean endOfTrack = false;
+
+		public long tick = 0;
+		public int status = 0; // Also serves as the running status, which javax keeps even after meta and sysex events
+		public int data1;
+		public int data2;
+		public int metaType;
+		public int dataOffset; // Absolute position of a meta or sysex payload in the buffer
+		public int dataLength;
+
+		private TrackReader(int pos, int end) {
+			this.pos = pos;
+			this.end = end;
+		}
+
+		// Advances to the next event, returning false at the end of the track
+		public boolean next() throws IOException {
+			if (pos >= end || endOfTrack) {
+				return false;
+			}
+			data1 = -1;
+			data2 = 0;
+			metaType = -1;
+			dataLength = 0;
+
+			tick += readVarInt();
+			int byteValue = readUnsigned();
+			if (byteValue >= 0x80) {
+				status = byteValue;
+			} else {
+				data1 = byteValue;
+			}
+
+			switch (status & 0xF0) {
+				case 0x80:
+				case 0x90:
+				case 0xA0:
+				case 0xB0:
+				case 0xE0:
+					if (data1 == -1) {
+						data1 = readUnsigned();
+					}
+					data2 = readUnsigned();
+					break;
+				case 0xC0:
+				case 0xD0:
+					if (data1 == -1) {
+						data1 = readUnsigned();
+					}
+					break;
+				case 0xF0:
+					switch (status) {
+						case 0xF0:
+						case 0xF7:
+							readPayload();
+							break;
+						case META:
+							metaType = readUnsigned();
+							readPayload();
+							if (metaType >= 128) {
+								throw new IOException("Invalid meta event with type " + metaType);
+							}
+							if (metaType == META_END_OF_TRACK) {
+								endOfTrack = true;
+							}
+							break;
+						default:
+							throw new IOException("Invalid status byte: " + status);
+					}
+					break;
+				default:
+					throw new IOException("Invalid status byte: " + status);
+			}
+			return true;
+		}
+
+		public int getCommand() {
+			return status & 0xF0;
+		}
+
+		public int getChannel() {
+			return status & 0x0F;
+		}
+
+		public boolean isMeta() {
+			return status == META;
+		}
+
+		public int getDataByte(int i) {
+			if (i < 0 || i >= dataLength) {
+				throw new IndexOutOfBoundsException("Index " + i + " out of bounds for length " + dataLength);
+			}
+			return buffer.get(dataOffset + i) & 0xFF;
+		}
+
+		private void readPayload() throws IOException {
+			int length = (int) readVarInt();
+			if (length < 0 || length > end - pos) {
+				throw new IOException("Message length is out of bounds: " + length);
+			}
+			dataOffset = pos;
+			dataLength = length;
+			pos += length;
+		}
+
+		private int readUnsigned() throws IOException {
+			if (pos >= end) {
+				throw new EOFException("invalid MIDI file");
+			}
+			return buffer.get(pos++) & 0xFF;
+		}
+
+		private long readVarInt() throws IOException {
+			long value = 0;
+			int currentByte;
+			do {
+				currentByte = readUnsigned();
+				value = (value << 7) + (currentByte & 0x7F);
+			} while ((currentByte & 0x80) != 0);
+			return value;
+		}
+	}
+
+	private static int readInt(ByteBuffer buffer, int pos, int limit) throws IOException {
+		if (pos < 0 || limit - pos < 4) {
+			throw new EOFException("invalid MIDI file");
+		}
+		return buffer.getInt(pos);
+	}
+
+	private static short readShort(ByteBuffer buffer, int pos, int limit) throws IOException {
+		if (limit - pos < 2) {
+			throw new EOFException("invalid MIDI file");
+		}
+		return buffer.getShort(pos);
+	}
+}
@@ -0,0 +1,93 @@
+package com.github.hhhzzzsss.songplayer.conversion;
+
+import java.util.Arrays;
+
+/**
+ * Maps midi ticks to song time, shared by every track of a file.
+ * Each tempo segment stores its start tick and its start time in units of microseconds*resolution,
+ * so times are exact sums of mpq*ticks and only get divided once, when converting to milliseconds.
+ */
+public class MidiTempoMap {
+	public static final int DEFAULT_MPQ = 500000;
+
+	private final long resolution;
+	private final long[] segmentTicks;
+	private final int[] segmentMpqs;
+	private final long[] segmentOffsets; // Start of each segment in microseconds*resolution
+	private final int segmentCount;
+
+	/**
+	 * Builds the map from tempo events in any order. Events at the same tick keep their given order, so the last one wins.
+	 * Tempos of 0 keep the previous tempo, and negative (invalid) tempos are ignored.
+	 */
+	public MidiTempoMap(int resolution, long[] tempoTicks, int[] tempoValues, int tempoCount) {
+		if (resolution <= 0) {
+			throw new IllegalArgumentException("Invalid resolution: " + resolution);
+		}
+		this.resolution = resolution;
+
+		long[] sortedTicks = Arrays.copyOf(tempoTicks, tempoCount);
+		int[] sortedValues = Arrays.copyOf(tempoValues, tempoCount);
+		sortTempoEvents(sortedTicks, sortedValues);
+
+		long[] ticks = new long[tempoCount + 1];
+		int[] mpqs = new int[tempoCount + 1];
+		long[] offsets = new long[tempoCount + 1];
+		ticks[0] = 0;
+		mpqs[0] = DEFAULT_MPQ;
+		offsets[0] = 0;
+		int count = 1;
+		for (int i = 0; i < tempoCount; i++) {
+			int mpq = sortedValues[i];
+			if (mpq <= 0 || mpq == mpqs[count-1]) {
+				continue;
+			}
+			long tick = sortedTicks[i];
+			if (tick == ticks[count-1]) {
+				// Replaces the tempo of a segment that hasn't lasted any ticks yet
+				mpqs[count-1] = mpq;
+				continue;
+			}
+			ticks[count] = tick;
+			mpqs[count] = mpq;
+			offsets[count] = offsets[count-1] + (tick - ticks[count-1]) * mpqs[count-1];
+			count++;
+		}
+		this.segmentTicks = ticks;
+		this.segmentMpqs = mpqs;
+		this.segmentOffsets = offsets;
+		this.segmentCount = count;
+	}
+
+	public int getSegmentCount() {
+		return segmentCount;
+	}
+
+	// Exact time of a tick in milliseconds, rounded down. Ticks are found by binary search, in O(log T).
+	public long getMillis(long tick) {
+		int segment = Arrays.binarySearch(segmentTicks, 0, segmentCount, tick);
+		if (segment < 0) {
+			segment = -segment - 2;
+		}
+		long offset = segmentOffsets[segment] + (tick - segmentTicks[segment]) * segmentMpqs[segment];
+		return offset / (resolution * 1000L);
+	}
+
+	// Stable sort by tick, so that tempo events at the same tick keep their track order
+	private static void sortTempoEvents(long[] ticks, int[] values) {
+		int count = ticks.length;
+		Integer[] order = new Integer[count];
+		for (int i = 0; i < count; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> Long.compare(ticks[a], ticks[b]));
+		long[] sortedTicks = new long[count];
+		int[] sortedValues = new int[count];
+		for (int i = 0; i < count; i++) {
+			sortedTicks[i] = ticks[order[i]];
+			sortedValues[i] = values[order[i]];
+		}
+		System.arraycopy(sortedTicks, 0, ticks, 0, count);
+		System.arraycopy(sortedValues, 0, values, 0, count);
+	}
+}
@@ -1,13 +1,11 @@
 package com.github.hhhzzzsss.songplayer.conversion;
 
 import com.github.hhhzzzsss.songplayer.song.Instrument;
-import com.github.hhhzzzsss.songplayer.song.Note;
 import com.github.hhhzzzsss.songplayer.song.Song;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.ArrayList;
 
 public class NBSConverter {
     public static Instrument[] instrumentIndex = new Instrument[] {
@@ -29,26 +27,18 @@ public class NBSConverter {
             Instrument.PLING,
     };
 
-    private static class NBSNote {
-        public int tick;
-        public short layer;
-        public byte instrument;
-        public byte key;
-        public byte velocity = 100;
-        public byte panning = 100;
-        public short pitch = 0;
-    }
-
-    private static class NBSLayer {
-        public String name;
-        public byte lock = 0;
-        public byte volume;
-        public byte stereo = 100;
+    public static Song getSongFromBytes(byte[] bytes, String fileName) throws IOException {
+        return getSongFromBuffer(ByteBuffer.wrap(bytes), fileName);
     }
 
-    public static Song getSongFromBytes(byte[] bytes, String fileName) throws IOException {
-        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    /**
+     * Decodes notes straight into the song. Layers come after the notes in the file, so the note block is first skipped
+     * over to count the notes and reach the layer volumes, which lets the second pass size the song and apply volumes as it goes.
+     */
+    public static Song getSongFromBuffer(ByteBuffer data, String fileName) throws IOException {
+        ByteBuffer buffer = data.duplicate();
         buffer.order(ByteOrder.LITTLE_ENDIAN);
+        int maxStringSize = buffer.remaining();
 
         short songLength = 0;
         byte format = 0;
@@ -66,69 +56,50 @@ public class NBSConverter {
         }
 
         short layerCount = buffer.getShort();
-        String songName = getString(buffer, bytes.length);
-        String songAuthor = getString(buffer, bytes.length);
-        String songOriginalAuthor = getString(buffer, bytes.length);
-        String songDescription = getString(buffer, bytes.length);
+        String songName = getString(buffer, maxStringSize);
+        skipString(buffer, maxStringSize); // Author
+        skipString(buffer, maxStringSize); // Original author
+        skipString(buffer, maxStringSize); // Description
         short tempo = buffer.getShort();
-        byte autoSaving = buffer.get();
-        byte autoSavingDuration = buffer.get();
-        byte timeSignature = buffer.get();
-        int minutesSpent = buffer.getInt();
-        int leftClicks = buffer.getInt();
-        int rightClicks = buffer.getInt();
-        int blocksAdded = buffer.getInt();
-        int blocksRemoved = buffer.getInt();
-        String origFileName = getString(buffer, bytes.length);
+        if (tempo <= 0) {
+            throw new IOException("Invalid tempo: " + tempo);
+        }
+        // Auto-saving, auto-saving duration, time signature, minutes spent, left clicks, right clicks, blocks added, blocks removed
+        buffer.position(buffer.position() + 3 + 5*4);
+        skipString(buffer, maxStringSize); // Original file name
 
         byte loop = 0;
         byte maxLoopCount = 0;
-        short loopStartTick = 0;
+        int loopStartTick = 0;
         if (format >= 4) {
             loop = buffer.get();
             maxLoopCount = buffer.get();
-            loopStartTick = buffer.getShort();
+            loopStartTick = buffer.getShort() & 0xFFFF;
         }
 
-        ArrayList<NBSNote> nbsNotes = new ArrayList<>();
-        short tick = -1;
-        while (true) {
-            int tickJumps = buffer.getShort();
-            if (tickJumps == 0) break;
-            tick += tickJumps;
-
-            short layer = -1;
-            while (true) {
-                int layerJumps = buffer.getShort();
-                if (layerJumps == 0) break;
-                layer += layerJumps;
-                NBSNote note = new NBSNote();
-                note.tick = tick;
-                note.layer = layer;
-                note.instrument = buffer.get();
-                note.key = buffer.get();
-                if (format >= 4) {
-                    note.velocity = buffer.get();
-                    note.panning = buffer.get();
-                    note.pitch = buffer.getShort();
-                }
-                nbsNotes.add(note);
+        int noteBytes = format >= 4 ? 6 : 2;
+        int notesStart = buffer.position();
+        int noteCount = 0;
+        while (buffer.getShort() != 0) {
+            while (buffer.getShort() != 0) {
+                buffer.position(buffer.position() + noteBytes);
+                noteCount++;
             }
         }
 
-        ArrayList<NBSLayer> nbsLayers = new ArrayList<>();
+        // Layers without a volume entry play at full volume
+        byte[] layerVolumes = null;
         if (buffer.hasRemaining()) {
+            layerVolumes = new byte[Math.max(layerCount, 0)];
             for (int i=0; i<layerCount; i++) {
-                NBSLayer layer = new NBSLayer();
-                layer.name = getString(buffer, bytes.length);
+                skipString(buffer, maxStringSize); // Name
                 if (format >= 4) {
-                    layer.lock = buffer.get();
+                    buffer.get(); // Lock
                 }
-                layer.volume = buffer.get();
+                layerVolumes[i] = buffer.get();
                 if (format >= 2) {
-                    layer.stereo = buffer.get();
+                    buffer.get(); // Stereo
                 }
-                nbsLayers.add(layer);
             }
         }
 
@@ -138,42 +109,74 @@ public class NBSConverter {
             song.loopPosition = getMilliTime(loopStartTick, tempo);
             song.loopCount = maxLoopCount;
         }
-        for (NBSNote note : nbsNotes) {
-            Instrument instrument;
-            if (note.instrument < instrumentIndex.length) {
-                instrument = instrumentIndex[note.instrument];
-            }
-            else {
-                continue;
-            }
+        song.notes.ensureCapacity(noteCount);
 
-            while (note.key < 33) {
-                note.key += 12;
-            }
-            while (note.key > 57) {
-                note.key -= 12;
-            }
+        buffer.position(notesStart);
+        int tick = -1;
+        while (true) {
+            int tickJumps = buffer.getShort();
+            if (tickJumps == 0) break;
+            tick += tickJumps;
 
-            byte layerVolume = 100;
-            if (nbsLayers.size() > note.layer) {
-                layerVolume = nbsLayers.get(note.layer).volume;
-            }
+            int layer = -1;
+            while (true) {
+                int layerJumps = buffer.getShort();
+                if (layerJumps == 0) break;
+                layer += layerJumps;
+                int instrument = buffer.get();
+                int key = buffer.get();
+                int velocity = 100;
+                if (format >= 4) {
+                    velocity = buffer.get();
+                    buffer.position(buffer.position() + 3); // Panning and pitch
+                }
 
-            // 跳过音量为0的音符（没有声音）
-            if (layerVolume == 0 || note.velocity == 0) {
-                continue;
-            }
+                if (instrument >= instrumentIndex.length) {
+                    continue;
+                }
+                if (instrument < 0) {
+                    throw new IOException("Invalid instrument at tick " + tick);
+                }
+
+                while (key < 33) {
+                    key += 12;
+                }
+                while (key > 57) {
+                    key -= 12;
+                }
+
+                byte layerVolume = 100;
+                if (layerVolumes != null && layer < layerVolumes.length) {
+                    if (layer < 0) {
+                        throw new IOException("Invalid layer at tick " + tick);
+                    }
+                    layerVolume = layerVolumes[layer];
+                }
 
-            int pitch = note.key-33;
-            int noteId = pitch + instrument.instrumentId*25;
-            song.add(new Note(noteId, getMilliTime(note.tick, tempo), layerVolume));
+                // 跳过音量为0的音符（没有声音）
+                if (layerVolume == 0 || velocity == 0) {
+                    continue;
+                }
+
+                int pitch = key-33;
+                int noteId = pitch + instrumentIndex[instrument].instrumentId*25;
+                song.add(noteId, getMilliTime(tick, tempo), layerVolume);
+            }
         }
 
-        song.length = song.get(song.size()-1).time + 50;
+        song.length = song.notes.isEmpty() ? 0 : song.getTime(song.size()-1) + 50;
 
         return song;
     }
 
+    private static void skipString(ByteBuffer buffer, int maxSize) throws IOException {
+        int length = buffer.getInt();
+        if (length > maxSize) {
+            throw new IOException("String is too large");
+        }
+        buffer.position(buffer.position() + length);
+    }
+
     private static String getString(ByteBuffer buffer, int maxSize) throws IOException {
         int length = buffer.getInt();
         if (length > maxSize) {
@@ -184,7 +187,8 @@ public class NBSConverter {
         return new String(arr);
     }
 
-    private static int getMilliTime(int tick, int tempo) {
-        return 1000 * tick * 100 / tempo;
+    // Tempo is in hundredths of ticks per second. Computed in 64 bits, since 1000 * tick * 100 overflows an int on long songs.
+    private static long getMilliTime(int tick, int tempo) {
+        return tick * 100_000L / tempo;
     }
 }
@@ -2,23 +2,68 @@ package com.github.hhhzzzsss.songplayer.conversion;
 
 import com.github.hhhzzzsss.songplayer.Config;
 import com.github.hhhzzzsss.songplayer.Util;
-import com.github.hhhzzzsss.songplayer.song.Note;
 import com.github.hhhzzzsss.songplayer.song.Song;
 
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
 
+/**
+ * SongPlayer's own song format.
+ * Version 1 is a gzipped stream of (note id, time delta) pairs without velocities, which can only be read from the start.
+ * Version 2 isn't gzipped as a whole. Notes are split into blocks of {@link #BLOCK_SIZE}, and each block is deflated on its own
+ * and holds separate columns of time deltas, instruments, pitches and velocities, since similar values next to each other compress better.
+ * Blocks where every note has the same velocity store it only once.
+ * A block index in the header lists the first time of each block, so reading can start at any time without inflating earlier blocks.
+ */
 public class SPConverter {
     public static final byte[] FILE_TYPE_SIGNATURE = {-53, 123, -51, -124, -122, -46, -35, 38};
     public static final long MAX_UNCOMPRESSED_SIZE = 50*1024*1024;
+    public static final int BLOCK_SIZE = 16384;
+    private static final int MAX_BLOCK_SIZE = 65536;
+    private static final int MAX_NOTE_BYTES = 10 + 1 + 1 + 1; // Time delta, instrument, pitch and velocity
+    private static final int BLOCK_CONSTANT_VELOCITY = 1;
 
     public static Song getSongFromBytes(byte[] bytes, String fileName) throws IOException {
-        InputStream is = new Util.LimitedSizeInputStream(new GZIPInputStream(new ByteArrayInputStream(bytes)), MAX_UNCOMPRESSED_SIZE);
-        bytes = is.readAllBytes();
+        return getSongFromBuffer(ByteBuffer.wrap(bytes), fileName);
+    }
+
+    public static Song getSongFromBuffer(ByteBuffer data, String fileName) throws IOException {
+        return getSongFromBuffer(data, fileName, 0);
+    }
+
+    // Only notes at or after fromTime are decoded
+    public static Song getSongFromBuffer(ByteBuffer data, String fileName, long fromTime) throws IOException {
+        ByteBuffer buffer = data.duplicate();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.remaining() > FILE_TYPE_SIGNATURE.length && startsWithSignature(buffer)) {
+            buffer.position(buffer.position() + FILE_TYPE_SIGNATURE.length);
+            byte version = buffer.get();
+            if (version != 2) {
+                throw new IOException("Unsupported format version!");
+            }
+            return readVersion2(buffer, fileName, fromTime);
+        }
+        return readVersion1(data, fileName, fromTime);
+    }
+
+    private static boolean startsWithSignature(ByteBuffer buffer) {
+        for (int i = 0; i < FILE_TYPE_SIGNATURE.length; i++) {
+            if (buffer.get(buffer.position() + i) != FILE_TYPE_SIGNATURE[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Song readVersion1(ByteBuffer data, String fileName, long fromTime) throws IOException {
+        InputStream is = new Util.LimitedSizeInputStream(new GZIPInputStream(new Util.ByteBufferInputStream(data)), MAX_UNCOMPRESSED_SIZE);
+        byte[] bytes = is.readAllBytes();
         is.close();
 
         ByteBuffer buffer = ByteBuffer.wrap(bytes);
@@ -31,29 +76,20 @@ public class SPConverter {
         }
 
         byte version = buffer.get();
-        // Currently on format version 1
         if (version != 1) {
             throw new IOException("Unsupported format version!");
         }
 
-        long songLength = buffer.getLong();
-        String songName = getString(buffer, bytes.length);
-        int loop = buffer.get() & 0xFF;
-        int loopCount = buffer.get() & 0xFF;
-        long loopPosition = buffer.getLong();
-
-        Song song = new Song(songName.trim().length() > 0 ? songName : fileName);
-        song.length = songLength;
-        song.looping = loop > 0;
-        song.loopCount = loopCount;
-        song.loopPosition = loopPosition;
+        Song song = readHeader(buffer, bytes.length, fileName);
 
         long time = 0;
         while (true) {
             int noteId = buffer.getShort();
             if (noteId >= 0 && noteId < 400) {
                 time += getVarLong(buffer);
-                song.add(new Note(noteId, time));
+                if (time >= fromTime) {
+                    song.add(noteId, time, 100);
+                }
             }
             else if ((noteId & 0xFFFF) == 0xFFFF) {
                 break;
@@ -66,12 +102,121 @@ public class SPConverter {
         return song;
     }
 
-    public static byte[] getBytesFromSong(Song song) throws IOException {
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        OutputStream os = new GZIPOutputStream(byteArrayOutputStream);
+    private static Song readVersion2(ByteBuffer buffer, String fileName, long fromTime) throws IOException {
+        Song song = readHeader(buffer, buffer.remaining(), fileName);
+        int noteCount = buffer.getInt();
+        int blockSize = buffer.getInt();
+        int blockCount = buffer.getInt();
+        if (noteCount < 0 || noteCount > MAX_UNCOMPRESSED_SIZE / 4) {
+            throw new IOException("Invalid note count of " + noteCount);
+        }
+        if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE || blockCount != (noteCount + blockSize - 1) / blockSize) {
+            throw new IOException("Invalid block layout");
+        }
+
+        long[] blockTimes = new long[blockCount];
+        int[] uncompressedLengths = new int[blockCount];
+        int[] blockOffsets = new int[blockCount + 1];
+        blockOffsets[0] = buffer.position() + blockCount * 16;
+        for (int i = 0; i < blockCount; i++) {
+            blockTimes[i] = buffer.getLong();
+            uncompressedLengths[i] = buffer.getInt();
+            int compressedLength = buffer.getInt();
+            if (uncompressedLengths[i] < 0 || uncompressedLengths[i] > blockSize * MAX_NOTE_BYTES + 1
+                    || compressedLength < 0 || compressedLength > buffer.limit() - blockOffsets[i]) {
+                throw new IOException("Invalid block " + i);
+            }
+            blockOffsets[i+1] = blockOffsets[i] + compressedLength;
+        }
+
+        // Equal times can continue from one block into the next, so decoding starts in the last block that begins before fromTime
+        int firstBlock = 0;
+        while (firstBlock + 1 < blockCount && blockTimes[firstBlock + 1] < fromTime) {
+            firstBlock++;
+        }
+        song.notes.ensureCapacity(noteCount - firstBlock * blockSize);
+
+        Inflater inflater = new Inflater();
+        try {
+            byte[] block = new byte[0];
+            for (int i = firstBlock; i < blockCount; i++) {
+                int blockNotes = Math.min(blockSize, noteCount - i * blockSize);
+                if (block.length < uncompressedLengths[i]) {
+                    block = new byte[uncompressedLengths[i]];
+                }
+                inflater.reset();
+                inflater.setInput(buffer.slice(blockOffsets[i], blockOffsets[i+1] - blockOffsets[i]));
+                int inflated = 0;
+                while (inflated < uncompressedLengths[i] && !inflater.finished()) {
+                    int n = inflater.inflate(block, inflated, uncompressedLengths[i] - inflated);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    inflated += n;
+                }
+                if (inflated != uncompressedLengths[i] || !inflater.finished()) {
+                    throw new IOException("Corrupted block " + i);
+                }
+                decodeBlock(ByteBuffer.wrap(block, 0, inflated), blockNotes, blockTimes[i], song, fromTime);
+            }
+        }
+        catch (DataFormatException e) {
+            throw new IOException("Corrupted song data", e);
+        }
+        finally {
+            inflater.end();
+        }
+
+        return song;
+    }
 
-        byte version = 1;
+    // The time deltas come first and vary in size, and the fixed size columns fill the rest of the block
+    private static void decodeBlock(ByteBuffer block, int blockNotes, long firstTime, Song song, long fromTime) throws IOException {
+        int flags = block.get();
+        int velocityBytes = (flags & BLOCK_CONSTANT_VELOCITY) != 0 ? 1 : blockNotes;
+        int instrumentStart = block.limit() - 2*blockNotes - velocityBytes;
+        int pitchStart = instrumentStart + blockNotes;
+        int velocityStart = pitchStart + blockNotes;
+        if (instrumentStart < block.position()) {
+            throw new IOException("Corrupted block");
+        }
+
+        long time = firstTime;
+        for (int j = 0; j < blockNotes; j++) {
+            time += getVarLong(block);
+            int instrument = block.get(instrumentStart + j);
+            int pitch = block.get(pitchStart + j);
+            int velocity = block.get(velocityBytes == 1 ? velocityStart : velocityStart + j) & 0xFF;
+            if (instrument < 0 || instrument >= 16 || pitch < 0 || pitch >= 25) {
+                throw new IOException("Song contains invalid note with instrument " + instrument + " and pitch " + pitch);
+            }
+            if (time >= fromTime) {
+                song.add(instrument*25 + pitch, time, velocity);
+            }
+        }
+        if (block.position() != instrumentStart) {
+            throw new IOException("Corrupted block");
+        }
+    }
 
+    /**
+     * Notes below the current velocity threshold are left out, like they would be when playing,
+     * so that the data stays as small as possible. The velocities of the remaining notes are kept.
+     */
+    public static byte[] getBytesFromSong(Song song) throws IOException {
+        song.sort();
+        int threshold = Config.getConfig().velocityThreshold;
+        int[] notes = new int[song.size()];
+        int noteCount = 0;
+        for (int i = 0; i < song.size(); i++) {
+            if (song.getVelocity(i) >= threshold) {
+                notes[noteCount++] = i;
+            }
+        }
+        int blockCount = (noteCount + BLOCK_SIZE - 1) / BLOCK_SIZE;
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte version = 2;
         os.write(FILE_TYPE_SIGNATURE);
         os.write(version);
         writeLong(os, song.length);
@@ -79,19 +224,82 @@ public class SPConverter {
         os.write(song.looping ? 1 : 0);
         os.write(Math.min(song.loopCount, 0xFF));
         writeLong(os, song.loopPosition);
+        writeInt(os, noteCount);
+        writeInt(os, BLOCK_SIZE);
+        writeInt(os, blockCount);
 
-        song.sort();
-        long prevTime = 0;
-        for (Note note : song.notes) if (note.velocity >= Config.getConfig().velocityThreshold) {
-            writeShort(os, note.noteId);
-            writeVarLong(os, note.time - prevTime);
-            prevTime = note.time;
+        ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        byte[] deflateBuffer = new byte[8192];
+        try {
+            for (int b = 0; b < blockCount; b++) {
+                int start = b * BLOCK_SIZE;
+                int end = Math.min(start + BLOCK_SIZE, noteCount);
+                long firstTime = song.getTime(notes[start]);
+
+                boolean constantVelocity = true;
+                for (int j = start + 1; j < end; j++) {
+                    if (song.getVelocity(notes[j]) != song.getVelocity(notes[start])) {
+                        constantVelocity = false;
+                        break;
+                    }
+                }
+
+                block.reset();
+                block.write(constantVelocity ? BLOCK_CONSTANT_VELOCITY : 0);
+                long prevTime = firstTime;
+                for (int j = start; j < end; j++) {
+                    long time = song.getTime(notes[j]);
+                    writeVarLong(block, time - prevTime);
+                    prevTime = time;
+                }
+                for (int j = start; j < end; j++) {
+                    block.write(song.getNoteId(notes[j]) / 25);
+                }
+                for (int j = start; j < end; j++) {
+                    block.write(song.getNoteId(notes[j]) % 25);
+                }
+                for (int j = start; j < (constantVelocity ? start + 1 : end); j++) {
+                    block.write(song.getVelocity(notes[j]));
+                }
+
+                deflater.reset();
+                deflater.setInput(block.toByteArray());
+                deflater.finish();
+                int compressedLength = 0;
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(deflateBuffer);
+                    blocks.write(deflateBuffer, 0, n);
+                    compressedLength += n;
+                }
+
+                writeLong(os, firstTime);
+                writeInt(os, block.size());
+                writeInt(os, compressedLength);
+            }
+        }
+        finally {
+            deflater.end();
         }
-        writeShort(os, 0xFFFF);
+        blocks.writeTo(os);
 
-        os.close();
+        return os.toByteArray();
+    }
 
-        return byteArrayOutputStream.toByteArray();
+    private static Song readHeader(ByteBuffer buffer, int maxStringSize, String fileName) throws IOException {
+        long songLength = buffer.getLong();
+        String songName = getString(buffer, maxStringSize);
+        int loop = buffer.get() & 0xFF;
+        int loopCount = buffer.get() & 0xFF;
+        long loopPosition = buffer.getLong();
+
+        Song song = new Song(songName.trim().length() > 0 ? songName : fileName);
+        song.length = songLength;
+        song.looping = loop > 0;
+        song.loopCount = loopCount;
+        song.loopPosition = loopPosition;
+        return song;
     }
 
     private static String getString(ByteBuffer buffer, int maxSize) throws IOException {
@@ -101,7 +309,6 @@ public class SPConverter {
         }
         byte[] arr = new byte[length];
         buffer.get(arr, 0, length);
-        System.out.println(new String(arr, StandardCharsets.UTF_8));
         return new String(arr, StandardCharsets.UTF_8);
     }
 
@@ -135,11 +342,6 @@ public class SPConverter {
         } while (val > 0);
     }
 
-    private static void writeShort(OutputStream os, int val) throws IOException {
-        os.write(val & 0xFF);
-        os.write((val >>> 8) & 0xFF);
-    }
-
     private static void writeInt(OutputStream os, int val) throws IOException {
         os.write(val & 0xFF);
         os.write((val >>> 8) & 0xFF);
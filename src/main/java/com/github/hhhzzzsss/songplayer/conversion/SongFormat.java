@@ -0,0 +1,169 @@
+package com.github.hhhzzzsss.songplayer.conversion;
+
+import com.github.hhhzzzsss.songplayer.Util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Song file formats, detected from the first bytes of a file so that the right converter can be picked
+ * without first failing through the other ones.
+ */
+public enum SongFormat {
+    MIDI,
+    NBS,
+    SP,
+    TXT,
+    UNKNOWN;
+
+    private static final byte[] MIDI_HEADER = {'M', 'T', 'h', 'd'};
+    private static final byte[] GZIP_HEADER = {0x1F, (byte) 0x8B};
+    private static final int TXT_SNIFF_LENGTH = 4096;
+
+    public static SongFormat detect(byte[] bytes) {
+        return detect(ByteBuffer.wrap(bytes));
+    }
+
+    // Looks at the remaining bytes of the buffer without moving its position
+    public static SongFormat detect(ByteBuffer bytes) {
+        if (startsWith(bytes, MIDI_HEADER)) {
+            return MIDI;
+        }
+        if (isSP(bytes)) {
+            return SP;
+        }
+        if (isNBS(bytes)) {
+            return NBS;
+        }
+        if (isTxt(bytes)) {
+            return TXT;
+        }
+        return UNKNOWN;
+    }
+
+    private static boolean startsWith(ByteBuffer bytes, byte[] prefix) {
+        if (bytes.remaining() < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes.get(bytes.position() + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // SP files are either gzipped or start with the signature directly
+    private static boolean isSP(ByteBuffer bytes) {
+        if (startsWith(bytes, SPConverter.FILE_TYPE_SIGNATURE)) {
+            return true;
+        }
+        if (!startsWith(bytes, GZIP_HEADER)) {
+            return false;
+        }
+        try (InputStream is = new GZIPInputStream(new Util.ByteBufferInputStream(bytes))) {
+            byte[] signature = is.readNBytes(SPConverter.FILE_TYPE_SIGNATURE.length);
+            return Arrays.equals(signature, SPConverter.FILE_TYPE_SIGNATURE);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * NBS has no magic number, so this walks the start of the header and checks that every field is plausible.
+     * Both the old format, which starts with the song length, and the new format, which starts with 0 and a version, are handled.
+     */
+    private static boolean isNBS(ByteBuffer bytes) {
+        ByteBuffer buffer = bytes.duplicate();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            short songLength = buffer.getShort();
+            if (songLength < 0) {
+                return false;
+            }
+            if (songLength == 0) {
+                int format = buffer.get();
+                int vanillaInstrumentCount = buffer.get();
+                if (format < 1 || format > 10 || vanillaInstrumentCount < 0 || vanillaInstrumentCount > NBSConverter.instrumentIndex.length) {
+                    return false;
+                }
+                if (format >= 3 && buffer.getShort() < 0) {
+                    return false;
+                }
+            }
+            short layerCount = buffer.getShort();
+            if (layerCount < 0) {
+                return false;
+            }
+            // Song name, author, original author and description
+            for (int i = 0; i < 4; i++) {
+                int length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    return false;
+                }
+                buffer.position(buffer.position() + length);
+            }
+            short tempo = buffer.getShort();
+            return tempo > 0;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    // The text format is lines of tick:pitch:instrument, with # for comments
+    private static boolean isTxt(ByteBuffer bytes) {
+        int start = bytes.position();
+        int length = Math.min(bytes.remaining(), TXT_SNIFF_LENGTH);
+        boolean sawNote = false;
+        int fieldCount = 1;
+        int fieldLength = 0;
+        boolean comment = false;
+        boolean lineStart = true;
+        for (int i = 0; i < length; i++) {
+            int b = bytes.get(start + i) & 0xFF;
+            if (b == '\n') {
+                if (!comment && fieldLength + fieldCount > 1) {
+                    if (fieldCount != 3 || fieldLength == 0) {
+                        return false;
+                    }
+                    sawNote = true;
+                }
+                fieldCount = 1;
+                fieldLength = 0;
+                comment = false;
+                lineStart = true;
+                continue;
+            }
+            if (comment) {
+                continue;
+            }
+            if (lineStart && b == '#') {
+                comment = true;
+            } else if (b >= '0' && b <= '9') {
+                fieldLength++;
+            } else if (b == ':') {
+                if (fieldLength == 0) {
+                    return false;
+                }
+                fieldCount++;
+                fieldLength = 0;
+            } else if (b == '-' && fieldLength == 0) {
+                // Negative numbers are syntactically fine, the converter decides whether they're valid
+            } else if (b != ' ' && b != '\t' && b != '\r') {
+                return false;
+            }
+            if (b != ' ' && b != '\t' && b != '\r') {
+                lineStart = false;
+            }
+        }
+        // A final line without a newline only counts if the whole file was inspected
+        if (length == bytes.remaining() && !comment && fieldLength + fieldCount > 1) {
+            return fieldCount == 3 && fieldLength > 0;
+        }
+        return sawNote;
+    }
+}
@@ -1,40 +1,209 @@
 package com.github.hhhzzzsss.songplayer.conversion;
 
-import com.github.hhhzzzsss.songplayer.song.Note;
+import com.github.hhhzzzsss.songplayer.Util;
 import com.github.hhhzzzsss.songplayer.song.Song;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 
+/**
+ * Text songs are lines of tick:pitch:instrument, and lines starting with # are comments.
+ * Files are parsed a byte at a time from a stream, so memory use only depends on the number of notes.
+ */
 public class TxtConverter {
+    private static final int BUFFER_SIZE = 8192;
+
     public static Song getSongFromBytes(byte[] bytes, String fileName) throws IOException {
-        Song song = new Song(fileName);
-        String strContent = new String(bytes, StandardCharsets.UTF_8);
+        return getSongFromStream(new ByteArrayInputStream(bytes), fileName);
+    }
 
-        String[] lines = strContent.split("\\r?\\n");
-        for (int lineNum = 1; lineNum <= lines.length; lineNum++) {
-            String line = lines[lineNum-1].strip();
+    public static Song getSongFromBuffer(ByteBuffer data, String fileName) throws IOException {
+        return getSongFromStream(new Util.ByteBufferInputStream(data), fileName);
+    }
 
-            if (line.startsWith("#")) continue;
+    public static Song getSongFromStream(InputStream is, String fileName) throws IOException {
+        Song song = new Song(fileName);
+        LineParser parser = new LineParser(song);
 
-            String[] split = line.split(":");
-            if (split.length != 3) throw new IOException("Invalid format at line " + lineNum);
-            int tick, pitch, instrument;
-            try {
-                tick = Integer.parseInt(split[0]);
-                pitch = Integer.parseInt(split[1]);
-                instrument = Integer.parseInt(split[2]);
-            } catch (NumberFormatException e) {
-                throw new IOException("Invalid format at line " + lineNum);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            for (int i = 0; i < read; i++) {
+                parser.accept(buffer[i]);
             }
-
-            int noteId = pitch + instrument*25;
-            song.add(new Note(noteId, tick*50));
-            song.length = song.get(song.size()-1).time + 50;
         }
+        parser.finish();
 
         song.sort();
+        if (!song.notes.isEmpty()) {
+            song.length = song.getTime(song.size()-1) + 50;
+        }
 
         return song;
     }
+
+    /**
+     * Accepts exactly what splitting the file on \r?\n, stripping each line and splitting it on ':' used to accept.
+     * That means trailing empty lines and trailing empty fields are allowed, but empty lines in between are not.
+     */
+    private static class LineParser {
+        private final Song song;
+        private int lineNum = 1;
+        private long bytesRead = 0;
+        private int firstEmptyLine = 0; // Empty lines are only an error if something other than empty lines follows them
+
+        // State of the current line
+        private int lineLength = 0;
+        private byte lastByte = 0;
+        private boolean started = false;
+        private boolean comment = false;
+        private boolean whitespaceAfterContent = false;
+        private boolean invalid = false;
+        private int fieldCount = 0;
+        private int nonEmptyFields = 0;
+        private boolean emptyFieldSeen = false;
+        private final int[] values = new int[3];
+
+        // State of the current field
+        private long fieldValue = 0;
+        private int fieldDigits = 0;
+        private boolean fieldNegative = false;
+        private boolean fieldSigned = false;
+
+        LineParser(Song song) {
+            this.song = song;
+        }
+
+        void accept(byte b) throws IOException {
+            bytesRead++;
+            if (b == '\n') {
+                // The \r of a \r\n line ending isn't part of the line
+                if (lastByte == '\r') {
+                    lineLength--;
+                }
+                endLine();
+                return;
+            }
+            lineLength++;
+            lastByte = b;
+            if (comment || invalid) {
+                return;
+            }
+
+            if (isWhitespace(b)) {
+                if (started) {
+                    whitespaceAfterContent = true;
+                }
+                return;
+            }
+            if (whitespaceAfterContent) {
+                invalid = true;
+                return;
+            }
+            if (!started) {
+                started = true;
+                if (b == '#') {
+                    comment = true;
+                    return;
+                }
+            }
+
+            if (b == ':') {
+                endField();
+            }
+            else if (b >= '0' && b <= '9') {
+                fieldValue = fieldValue*10 + (b - '0');
+                fieldDigits++;
+                if (fieldValue > (long) Integer.MAX_VALUE + 1) {
+                    invalid = true;
+                }
+            }
+            else if ((b == '-' || b == '+') && !fieldSigned && fieldDigits == 0) {
+                fieldSigned = true;
+                fieldNegative = b == '-';
+            }
+            else {
+                invalid = true;
+            }
+        }
+
+        void finish() throws IOException {
+            if (bytesRead == 0) {
+                throw new IOException("Invalid format at line 1");
+            }
+            if (lineLength > 0) {
+                endLine();
+            }
+        }
+
+        private void endField() {
+            if (fieldDigits == 0 && !fieldSigned) {
+                emptyFieldSeen = true;
+            }
+            else if (emptyFieldSeen || fieldDigits == 0) {
+                invalid = true;
+            }
+            else {
+                long value = fieldNegative ? -fieldValue : fieldValue;
+                if (value > Integer.MAX_VALUE || value < Integer.MIN_VALUE) {
+                    invalid = true;
+                }
+                else if (fieldCount < 3) {
+                    values[fieldCount] = (int) value;
+                }
+                nonEmptyFields++;
+            }
+            fieldCount++;
+            fieldValue = 0;
+            fieldDigits = 0;
+            fieldNegative = false;
+            fieldSigned = false;
+        }
+
+        private void endLine() throws IOException {
+            if (lineLength == 0) {
+                if (firstEmptyLine == 0) {
+                    firstEmptyLine = lineNum;
+                }
+            }
+            else {
+                if (firstEmptyLine != 0) {
+                    throw new IOException("Invalid format at line " + firstEmptyLine);
+                }
+                if (!comment) {
+                    endField();
+                    if (invalid || nonEmptyFields != 3) {
+                        throw new IOException("Invalid format at line " + lineNum);
+                    }
+                    int tick = values[0];
+                    int pitch = values[1];
+                    int instrument = values[2];
+                    int noteId = pitch + instrument*25;
+                    song.add(noteId, tick*50L, 100);
+                }
+            }
+
+            lineNum++;
+            lineLength = 0;
+            lastByte = 0;
+            started = false;
+            comment = false;
+            whitespaceAfterContent = false;
+            invalid = false;
+            fieldCount = 0;
+            nonEmptyFields = 0;
+            emptyFieldSeen = false;
+            fieldValue = 0;
+            fieldDigits = 0;
+            fieldNegative = false;
+            fieldSigned = false;
+        }
+
+        // Same as Character.isWhitespace for ASCII, which is what String.strip removes
+        private static boolean isWhitespace(byte b) {
+            return b == ' ' || (b >= 0x09 && b <= 0x0D) || (b >= 0x1C && b <= 0x1F);
+        }
+    }
 }
@@ -2,6 +2,9 @@ package com.github.hhhzzzsss.songplayer.item;
 
 import com.github.hhhzzzsss.songplayer.Util;
 import com.github.hhhzzzsss.songplayer.playing.SongHandler;
+import com.github.hhhzzzsss.songplayer.song.Song;
+import com.github.hhhzzzsss.songplayer.song.SongLoader;
+import com.github.hhhzzzsss.songplayer.song.SongReference;
 import net.minecraft.client.font.MultilineText;
 import net.minecraft.client.gui.DrawContext;
 import net.minecraft.client.gui.screen.Screen;
@@ -11,10 +14,12 @@ import net.minecraft.text.Text;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
 
 public class SongItemConfirmationScreen extends Screen {
     private ItemStack stack;
-    private SongItemLoaderThread loaderThread;
+    private SongItemLoadTask loadTask;
+    private CompletableFuture<Song> loadFuture;
     private MultilineText unloadedText;
     private MultilineText loadedText;
     private boolean loaded = false;
@@ -25,8 +30,8 @@ public class SongItemConfirmationScreen extends Screen {
     public SongItemConfirmationScreen(ItemStack stack) throws IOException, IllegalArgumentException {
         super(Text.literal("使用歌曲物品"));
         this.stack = stack;
-        this.loaderThread = new SongItemLoaderThread(stack);
-        this.loaderThread.start();
+        this.loadTask = new SongItemLoadTask(stack);
+        this.loadFuture = SongLoader.load(loadTask);
     }
 
     @Override
@@ -40,7 +45,7 @@ public class SongItemConfirmationScreen extends Screen {
         int centerX = this.width / 2;
 
         this.addDrawableChild(ButtonWidget.builder(CONFIRM, button -> {
-            SongHandler.getInstance().loadSong(loaderThread);
+            SongHandler.getInstance().loadSong(new SongReference(loadTask.song.name, loadFuture));
             this.client.setScreen(null);
         }).dimensions(centerX - 105, y, 100, 20).build());
 
@@ -55,17 +60,17 @@ public class SongItemConfirmationScreen extends Screen {
 
         context.drawCenteredTextWithShadow(textRenderer, this.title, this.width / 2, 40, 0xFFFFFF);
 
-        if (!loaderThread.isAlive()) {
-            if (loaderThread.exception != null) {
-                Util.showChatMessage("§c加载歌曲物品时出错: §4" + loaderThread.exception.getMessage());
+        if (loadFuture.isDone()) {
+            if (loadTask.exception != null) {
+                Util.showChatMessage("§c加载歌曲物品时出错: §4" + loadTask.exception.getMessage());
                 this.client.setScreen(null);
                 return;
             }
             else if (loadedText == null) {
                 String[] loadedMessages = {
-                        "§3" + loaderThread.song.name,
-                        String.format("§7每秒最大音符数: %s%d", getNumberColor(loaderThread.maxNotesPerSecond), loaderThread.maxNotesPerSecond),
-                        String.format("§7每秒平均音符数: %s%.2f", getNumberColor(loaderThread.avgNotesPerSecond), loaderThread.avgNotesPerSecond),
+                        "§3" + loadTask.song.name,
+                        String.format("§7每秒最大音符数: %s%d", getNumberColor(loadTask.maxNotesPerSecond), loadTask.maxNotesPerSecond),
+                        String.format("§7每秒平均音符数: %s%.2f", getNumberColor(loadTask.avgNotesPerSecond), loadTask.avgNotesPerSecond),
                 };
                 Text[] messageList = Arrays.stream(loadedMessages).map(Text::literal).toArray(Text[]::new);
                 this.loadedText = MultilineText.create(this.textRenderer, messageList);
@@ -85,6 +90,12 @@ public class SongItemConfirmationScreen extends Screen {
         }
     }
 
+    @Override
+    public void removed() {
+        // Stops loading if the screen is closed before the song is played. Does nothing once it's loaded.
+        loadFuture.cancel(false);
+    }
+
     public String getNumberColor(double number) {
         if (number < 50) {
             return "§a";
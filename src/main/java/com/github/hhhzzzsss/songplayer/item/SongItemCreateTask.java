@@ -0,0 +1,92 @@
+package com.github.hhhzzzsss.songplayer.item;
+
+import com.github.hhhzzzsss.songplayer.SongPlayer;
+import com.github.hhhzzzsss.songplayer.Util;
+import com.github.hhhzzzsss.songplayer.conversion.SPConverter;
+import com.github.hhhzzzsss.songplayer.song.SongLoadTask;
+import net.minecraft.component.DataComponentTypes;
+import net.minecraft.component.type.CustomModelDataComponent;
+import net.minecraft.entity.player.PlayerInventory;
+import net.minecraft.item.ItemStack;
+import net.minecraft.item.Items;
+import net.minecraft.text.Text;
+
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SongItemCreateTask extends SongLoadTask {
+    public final int slotId;
+    public final ItemStack stack;
+    public SongItemCreateTask(String location) throws IOException {
+        super(location);
+        this.slotId = SongPlayer.MC.player.getInventory().getSelectedSlot();
+        this.stack = SongPlayer.MC.player.getInventory().getStack(slotId);
+    }
+
+    @Override
+    public void run() {
+        super.run();
+        if (exception != null) {
+            if (!isCancelled()) {
+                Util.showChatMessage("§c创建歌曲物品时出错: §4" + exception.getMessage());
+            }
+            return;
+        }
+        byte[] songData;
+        String songId;
+        try {
+            songData = SPConverter.getBytesFromSong(song);
+            songId = SongItemLoadTask.getSongId(songData, songData.length);
+        } catch (IOException | NoSuchAlgorithmException e) {
+            Util.showChatMessage("§c创建歌曲物品时出错: §4" + e.getMessage());
+            return;
+        }
+        int chunkCount = SongItemUtils.getChunkCount(songData);
+        SongPlayer.MC.execute(() -> {
+            if (SongPlayer.MC.world == null) {
+                return;
+            }
+            if (!SongPlayer.MC.player.getInventory().getStack(slotId).equals(stack)) {
+                Util.showChatMessage("§c无法创建歌曲物品，因为物品已移动");
+            }
+            PlayerInventory inventory = SongPlayer.MC.player.getInventory();
+
+            // Songs that don't fit in one item are split over the held item and empty inventory slots
+            List<Integer> chunkSlots = new ArrayList<>();
+            chunkSlots.add(slotId);
+            for (int slot = 0; slot < PlayerInventory.MAIN_SIZE && chunkSlots.size() < chunkCount; slot++) {
+                if (slot != slotId && inventory.getStack(slot).isEmpty()) {
+                    chunkSlots.add(slot);
+                }
+            }
+            if (chunkSlots.size() < chunkCount) {
+                Util.showChatMessage(String.format("§c歌曲数据需要 §4%d §c个物品，但背包中没有足够的空槽位", chunkCount));
+                return;
+            }
+
+            ItemStack newStack = stack.isEmpty() ? createBlankSongItem() : stack.copy();
+            if (chunkCount == 1) {
+                newStack = SongItemUtils.createSongItem(newStack, songData, filename, song.name);
+                SongItemUtils.setInventoryStack(slotId, newStack);
+                Util.showChatMessage(Text.literal("§6已成功将歌曲数据分配给 §3").append(newStack.getItem().getName()));
+            }
+            else {
+                for (int i = 0; i < chunkCount; i++) {
+                    ItemStack chunkStack = i == 0 ? newStack : createBlankSongItem();
+                    SongItemUtils.createSongItemChunk(chunkStack, songData, songId, i, filename, song.name);
+                    SongItemUtils.setInventoryStack(chunkSlots.get(i), chunkStack);
+                }
+                Util.showChatMessage(Text.literal(String.format("§6已成功将歌曲数据分配给 §3%d §6个物品", chunkCount)));
+            }
+        });
+    }
+
+    private static ItemStack createBlankSongItem() {
+        ItemStack newStack = Items.PAPER.getDefaultStack();
+        // When going from 1.21.3 -> 1.21.4, datafixer changes the custom model data to a float array with one element
+        newStack.set(DataComponentTypes.CUSTOM_MODEL_DATA, new CustomModelDataComponent(List.of(751642938f), List.of(), List.of(), List.of()));
+        return newStack;
+    }
+}
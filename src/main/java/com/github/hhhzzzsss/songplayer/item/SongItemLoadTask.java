@@ -0,0 +1,150 @@
+package com.github.hhhzzzsss.songplayer.item;
+
+import com.github.hhhzzzsss.songplayer.SongPlayer;
+import com.github.hhhzzzsss.songplayer.conversion.SPConverter;
+import com.github.hhhzzzsss.songplayer.song.Song;
+import com.github.hhhzzzsss.songplayer.song.SongLoadTask;
+import net.minecraft.component.type.NbtComponent;
+import net.minecraft.item.ItemStack;
+import net.minecraft.nbt.NbtCompound;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+public class SongItemLoadTask extends SongLoadTask {
+    private static final int DECODED_CACHE_SIZE = 8;
+    // Decoded songs by hash of their data, so that opening the same song item again skips decoding.
+    // Songs in the cache are never played directly, only copies of them.
+    private static final Map<String, Song> decodedSongs = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Song> eldest) {
+            return size() > DECODED_CACHE_SIZE;
+        }
+    };
+
+    public byte[] songData; // Null for songs split over several items
+    public String songId;
+    public String displayName;
+    public int maxNotesPerSecond = 0;
+    public double avgNotesPerSecond = 0;
+    private NbtComponent[] chunks;
+
+    public SongItemLoadTask(ItemStack stack) throws IOException, IllegalArgumentException {
+        NbtCompound songItemNbt = SongItemUtils.getSongItemTag(stack)
+                .orElseThrow(() -> new IOException("Song item tag is missing"));
+        displayName = songItemNbt.getString(SongItemUtils.DISPLAY_NAME_KEY).orElse(null);
+        filename = displayName;
+
+        int chunkCount = songItemNbt.getInt(SongItemUtils.CHUNK_COUNT_KEY, 1);
+        if (chunkCount > 1) {
+            // Only the item data of the chunks is collected here, their contents are read by the loader thread
+            songId = songItemNbt.getString(SongItemUtils.SONG_ID_KEY)
+                    .orElseThrow(() -> new IOException("Song id is missing"));
+            chunks = SongItemUtils.findSongItemChunks(SongPlayer.MC.player.getInventory(), songId, chunkCount);
+            int missing = 0;
+            for (NbtComponent chunk : chunks) {
+                if (chunk == null) {
+                    missing++;
+                }
+            }
+            if (missing > 0) {
+                throw new IOException(String.format("Missing %d of %d song item chunks", missing, chunkCount));
+            }
+        }
+        else {
+            songData = SongItemUtils.getSongData(songItemNbt);
+            if (songData == null) {
+                throw new IOException("Song data is missing");
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            song = getDecodedSong();
+            if (displayName != null && displayName.length() > 0) { // Display name has priority
+                song.name = displayName;
+            }
+            if (song.name == null || song.name.length() == 0) { // Fallback to unnamed
+                song.name = "unnamed";
+            }
+
+            int j = 0;
+            int notesInSecond = 0;
+            for (int i = 0; i < song.size(); i++) {
+                notesInSecond++;
+                while (song.getTime(j) + 1000 < song.getTime(i)) {
+                    j++;
+                    notesInSecond--;
+                }
+                maxNotesPerSecond = Math.max(notesInSecond, maxNotesPerSecond);
+            }
+            avgNotesPerSecond = song.notes.size() * 1000.0 / song.length;
+        }
+        catch (Exception e) {
+            exception = e;
+            e.printStackTrace();
+        }
+    }
+
+    // Chunked songs are looked up by their song id, so a cached song doesn't need any of its chunks to be read
+    private Song getDecodedSong() throws IOException, NoSuchAlgorithmException {
+        String key = songId != null ? songId : getSongId(songData, songData.length);
+        Song decoded;
+        synchronized (decodedSongs) {
+            decoded = decodedSongs.get(key);
+        }
+        if (decoded == null) {
+            ByteBuffer data = songData != null ? ByteBuffer.wrap(songData) : readChunks();
+            decoded = SPConverter.getSongFromBuffer(data, filename);
+            decoded.sort();
+            synchronized (decodedSongs) {
+                decodedSongs.put(key, decoded);
+            }
+        }
+        return decoded.copy();
+    }
+
+    // Reassembles chunked song data, checking each chunk as it's read and the whole song against its id at the end
+    private ByteBuffer readChunks() throws IOException, NoSuchAlgorithmException {
+        byte[] data = new byte[chunks.length * SongItemUtils.CHUNK_SIZE];
+        int length = 0;
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < chunks.length; i++) {
+            NbtCompound chunkNbt = SongItemUtils.getSongItemTag(chunks[i])
+                    .orElseThrow(() -> new IOException("Song item tag is missing"));
+            byte[] chunk = chunkNbt.getByteArray(SongItemUtils.SONG_DATA_KEY)
+                    .orElseThrow(() -> new IOException("Song data is missing"));
+            boolean lastChunk = i == chunks.length - 1;
+            if (chunk.length > SongItemUtils.CHUNK_SIZE || (!lastChunk && chunk.length != SongItemUtils.CHUNK_SIZE)) {
+                throw new IOException(String.format("Song item chunk %d of %d has the wrong size", i + 1, chunks.length));
+            }
+            crc.reset();
+            crc.update(chunk);
+            if (chunkNbt.getInt(SongItemUtils.CHUNK_CRC_KEY, 0) != (int) crc.getValue()) {
+                throw new IOException(String.format("Song item chunk %d of %d is corrupted", i + 1, chunks.length));
+            }
+            System.arraycopy(chunk, 0, data, length, chunk.length);
+            length += chunk.length;
+            chunks[i] = null;
+        }
+        if (!getSongId(data, length).equals(songId)) {
+            throw new IOException("Song item chunks don't match their song id");
+        }
+        return ByteBuffer.wrap(data, 0, length);
+    }
+
+    // Hash of the whole song data, which identifies the song of every chunk item and keys the decoded song cache
+    public static String getSongId(byte[] songData, int length) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(songData, 0, length);
+        return HexFormat.of().formatHex(digest.digest());
+    }
+}
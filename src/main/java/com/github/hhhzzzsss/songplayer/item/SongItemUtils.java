@@ -1,26 +1,66 @@
 package com.github.hhhzzzsss.songplayer.item;
 
+import com.github.hhhzzzsss.songplayer.SongPlayer;
 import com.github.hhhzzzsss.songplayer.Util;
 import net.minecraft.component.DataComponentTypes;
 import net.minecraft.component.type.NbtComponent;
+import net.minecraft.entity.player.PlayerInventory;
 import net.minecraft.item.ItemStack;
 import net.minecraft.nbt.NbtCompound;
 import net.minecraft.text.Style;
 import net.minecraft.util.Formatting;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.List;
 import java.util.Optional;
 import java.util.function.Consumer;
+import java.util.zip.CRC32;
 
 public class SongItemUtils {
     public static final String SONG_ITEM_KEY = "SongItemData";
     public static final String SONG_DATA_KEY = "SongData";
     public static final String FILE_NAME_KEY = "FileName";
     public static final String DISPLAY_NAME_KEY = "DisplayName";
+    public static final String SONG_ID_KEY = "SongId";
+    public static final String CHUNK_INDEX_KEY = "ChunkIndex";
+    public static final String CHUNK_COUNT_KEY = "ChunkCount";
+    public static final String CHUNK_CRC_KEY = "CRC32";
+
+    // Songs larger than this are split over several items. Item nbt sent to the server is limited to 2 MiB, so this leaves plenty of room.
+    public static final int CHUNK_SIZE = 256*1024;
 
     public static ItemStack createSongItem(ItemStack stack, byte[] songData, String filename, String displayName) {
         NbtCompound songItemTag = new NbtCompound();
-        songItemTag.putString(SONG_DATA_KEY, Base64.getEncoder().encodeToString(songData));
+        songItemTag.putByteArray(SONG_DATA_KEY, songData);
+        songItemTag.putString(FILE_NAME_KEY, filename);
+        songItemTag.putString(DISPLAY_NAME_KEY, displayName);
+        NbtComponent.set(DataComponentTypes.CUSTOM_DATA, stack, nbt -> nbt.put(SONG_ITEM_KEY, songItemTag));
+        addSongItemDisplay(stack);
+        return stack;
+    }
+
+    public static int getChunkCount(byte[] songData) {
+        return Math.max(1, (songData.length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+
+    /**
+     * Makes the stack carry one chunk of a song that is split over several items.
+     * All chunks share the song id, which is the hash of the whole song data, and each chunk has its own checksum.
+     */
+    public static ItemStack createSongItemChunk(ItemStack stack, byte[] songData, String songId, int chunkIndex, String filename, String displayName) {
+        int start = chunkIndex * CHUNK_SIZE;
+        byte[] chunk = Arrays.copyOfRange(songData, start, Math.min(start + CHUNK_SIZE, songData.length));
+        CRC32 crc = new CRC32();
+        crc.update(chunk);
+
+        NbtCompound songItemTag = new NbtCompound();
+        songItemTag.putByteArray(SONG_DATA_KEY, chunk);
+        songItemTag.putString(SONG_ID_KEY, songId);
+        songItemTag.putInt(CHUNK_INDEX_KEY, chunkIndex);
+        songItemTag.putInt(CHUNK_COUNT_KEY, getChunkCount(songData));
+        songItemTag.putInt(CHUNK_CRC_KEY, (int) crc.getValue());
         songItemTag.putString(FILE_NAME_KEY, filename);
         songItemTag.putString(DISPLAY_NAME_KEY, displayName);
         NbtComponent.set(DataComponentTypes.CUSTOM_DATA, stack, nbt -> nbt.put(SONG_ITEM_KEY, songItemTag));
@@ -28,11 +68,71 @@ public class SongItemUtils {
         return stack;
     }
 
+    /**
+     * Finds the item data of every chunk of a song in the inventory, with null for missing chunks.
+     * Matching is done on the components without copying their nbt, so no chunk data is read here.
+     */
+    public static NbtComponent[] findSongItemChunks(PlayerInventory inventory, String songId, int chunkCount) {
+        NbtComponent[] chunks = new NbtComponent[chunkCount];
+        for (int chunkIndex = 0; chunkIndex < chunkCount; chunkIndex++) {
+            NbtCompound songItemPattern = new NbtCompound();
+            songItemPattern.putString(SONG_ID_KEY, songId);
+            songItemPattern.putInt(CHUNK_INDEX_KEY, chunkIndex);
+            NbtCompound pattern = new NbtCompound();
+            pattern.put(SONG_ITEM_KEY, songItemPattern);
+            for (int slot = 0; slot < PlayerInventory.MAIN_SIZE; slot++) {
+                NbtComponent customData = inventory.getStack(slot).get(DataComponentTypes.CUSTOM_DATA);
+                if (customData != null && customData.matches(pattern)) {
+                    chunks[chunkIndex] = customData;
+                    break;
+                }
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Finds the slots of every item that belongs to the same song as the item in the given slot.
+     * For a song split over several items, that's every chunk of it in the inventory, including copies of the same chunk.
+     */
+    public static List<Integer> findSongItemSlots(PlayerInventory inventory, int slot) {
+        List<Integer> slots = new ArrayList<>();
+        Optional<String> songId = getSongItemTag(inventory.getStack(slot))
+                .filter((songItemTag) -> songItemTag.getInt(CHUNK_COUNT_KEY, 1) > 1)
+                .flatMap((songItemTag) -> songItemTag.getString(SONG_ID_KEY));
+        if (songId.isEmpty()) {
+            slots.add(slot);
+            return slots;
+        }
+        NbtCompound songItemPattern = new NbtCompound();
+        songItemPattern.putString(SONG_ID_KEY, songId.get());
+        NbtCompound pattern = new NbtCompound();
+        pattern.put(SONG_ITEM_KEY, songItemPattern);
+        for (int i = 0; i < PlayerInventory.MAIN_SIZE; i++) {
+            NbtComponent customData = inventory.getStack(i).get(DataComponentTypes.CUSTOM_DATA);
+            if (customData != null && customData.matches(pattern)) {
+                slots.add(i);
+            }
+        }
+        return slots;
+    }
+
+    public static void setInventoryStack(int slot, ItemStack stack) {
+        SongPlayer.MC.player.getInventory().setStack(slot, stack);
+        // Hotbar slots come after the main inventory in the player screen handler
+        int handlerSlot = slot < 9 ? 36 + slot : slot;
+        SongPlayer.MC.interactionManager.clickCreativeStack(stack, handlerSlot);
+    }
+
     public static void addSongItemDisplay(ItemStack stack) {
         getSongItemTag(stack).ifPresent((songItemTag) -> {
             String name = songItemTag.getString(DISPLAY_NAME_KEY)
                     .or(() -> songItemTag.getString(FILE_NAME_KEY))
                     .orElse("未命名");
+            int chunkCount = songItemTag.getInt(CHUNK_COUNT_KEY, 1);
+            if (chunkCount > 1) {
+                name += String.format(" (%d/%d)", songItemTag.getInt(CHUNK_INDEX_KEY, 0) + 1, chunkCount);
+            }
             Util.setItemName(stack,
                     Util.getStyledText(name, Style.EMPTY.withColor(Formatting.DARK_AQUA).withItalic(false))
             );
@@ -52,19 +152,29 @@ public class SongItemUtils {
     }
 
     public static Optional<NbtCompound> getSongItemTag(ItemStack stack) {
-        return stack.getOrDefault(DataComponentTypes.CUSTOM_DATA, NbtComponent.DEFAULT)
-                .copyNbt()
-                .getCompound(SONG_ITEM_KEY);
+        return getSongItemTag(stack.getOrDefault(DataComponentTypes.CUSTOM_DATA, NbtComponent.DEFAULT));
     }
 
+    public static Optional<NbtCompound> getSongItemTag(NbtComponent customData) {
+        return customData.copyNbt().getCompound(SONG_ITEM_KEY);
+    }
+
+    // Called on every right click, so this checks for the key without copying the item's nbt
     public static boolean isSongItem(ItemStack stack) {
-        return getSongItemTag(stack).isPresent();
+        NbtComponent customData = stack.get(DataComponentTypes.CUSTOM_DATA);
+        return customData != null && customData.contains(SONG_ITEM_KEY);
     }
 
     public static byte[] getSongData(ItemStack stack) throws IllegalArgumentException {
         return getSongItemTag(stack)
-                .flatMap((songItemTag) -> songItemTag.getString(SONG_DATA_KEY))
-                .map((songData) -> Base64.getDecoder().decode(songData))
+                .map(SongItemUtils::getSongData)
+                .orElse(null);
+    }
+
+    // Song data is stored as a byte array, but items made by older versions store it as a Base64 string
+    public static byte[] getSongData(NbtCompound songItemTag) throws IllegalArgumentException {
+        return songItemTag.getByteArray(SONG_DATA_KEY)
+                .or(() -> songItemTag.getString(SONG_DATA_KEY).map((songData) -> Base64.getDecoder().decode(songData)))
                 .orElse(null);
     }
 }
@@ -0,0 +1,266 @@
+package com.github.hhhzzzsss.songplayer.playing;
+
+import com.github.hhhzzzsss.songplayer.song.Instrument;
+import com.github.hhhzzzsss.songplayer.song.Song;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.MathHelper;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Flat, immutable form of a song bound to a stage, compiled once building is done.
+ * Notes are grouped into chords of equal time, notes below the velocity threshold or without a noteblock are dropped,
+ * and every remaining note is resolved to an index into the stage's block positions with precomputed look angles.
+ * The notes of each chord are ordered by priority, see {@link ChordSorter}.
+ * Nothing changes after compiling, so a plan can be shared with the playback scheduler thread.
+ * Callers that walk through the chords keep track of their own position.
+ */
+public class DispatchPlan {
+    public final Song song;
+    public final int velocityThreshold;
+
+    private final int[] chordNoteStarts; // Song note index where each chord starts, plus one trailing entry for the end of the song
+    private final int[] chordEntryStarts; // Index into entryBlocks where each chord starts, plus one trailing entry
+    private final short[] entryBlocks;
+    private final BlockPos[] blockPositions;
+    private final float[] blockYaws;
+    private final float[] blockPitches;
+
+    private DispatchPlan(Song song, int velocityThreshold, int[] chordNoteStarts, int[] chordEntryStarts, short[] entryBlocks, BlockPos[] blockPositions, float[] blockYaws, float[] blockPitches) {
+        this.song = song;
+        this.velocityThreshold = velocityThreshold;
+        this.chordNoteStarts = chordNoteStarts;
+        this.chordEntryStarts = chordEntryStarts;
+        this.entryBlocks = entryBlocks;
+        this.blockPositions = blockPositions;
+        this.blockYaws = blockYaws;
+        this.blockPitches = blockPitches;
+    }
+
+    public static DispatchPlan compile(Song song, Stage stage, int velocityThreshold, double eyeHeight) {
+        // Resolve every noteblock of the stage to a block index
+        int[] noteBlockIndex = new int[400];
+        Arrays.fill(noteBlockIndex, -1);
+        BlockPos[] blockPositions = new BlockPos[stage.noteblockPositions.size()];
+        float[] blockYaws = new float[blockPositions.length];
+        float[] blockPitches = new float[blockPositions.length];
+        int numBlocks = 0;
+        for (Map.Entry<Integer, BlockPos> entry : stage.noteblockPositions.entrySet()) {
+            BlockPos bp = entry.getValue();
+            double dx = bp.getX() + 0.5 - (stage.position.getX() + 0.5);
+            double dy = bp.getY() + 0.5 - (stage.position.getY() + eyeHeight);
+            double dz = bp.getZ() + 0.5 - (stage.position.getZ() + 0.5);
+            blockPositions[numBlocks] = bp;
+            blockYaws[numBlocks] = getLookYaw(dx, dz);
+            blockPitches[numBlocks] = getLookPitch(dx, dy, dz);
+            noteBlockIndex[entry.getKey()] = numBlocks;
+            numBlocks++;
+        }
+
+        // First pass counts chords and playable entries so that the arrays can be sized exactly
+        int size = song.size();
+        int numChords = 0;
+        int numEntries = 0;
+        for (int i = 0; i < size; i++) {
+            if (i == 0 || song.getTime(i) != song.getTime(i-1)) {
+                numChords++;
+            }
+            if (isPlayable(song, i, noteBlockIndex, velocityThreshold)) {
+                numEntries++;
+            }
+        }
+
+        int[] chordNoteStarts = new int[numChords + 1];
+        int[] chordEntryStarts = new int[numChords + 1];
+        short[] entryBlocks = new short[numEntries];
+        ChordSorter sorter = new ChordSorter();
+        int chord = 0;
+        int entry = 0;
+        int i = 0;
+        while (i < size) {
+            chordNoteStarts[chord] = i;
+            chordEntryStarts[chord] = entry;
+            long time = song.getTime(i);
+            sorter.clear();
+            for (; i < size && song.getTime(i) == time; i++) {
+                if (isPlayable(song, i, noteBlockIndex, velocityThreshold)) {
+                    sorter.add(song.getNoteId(i), song.getVelocity(i));
+                }
+            }
+            sorter.sortByPriority();
+            for (int j = 0; j < sorter.size; j++) {
+                entryBlocks[entry++] = (short) noteBlockIndex[sorter.noteIds[j]];
+            }
+            chord++;
+        }
+        chordNoteStarts[numChords] = size;
+        chordEntryStarts[numChords] = numEntries;
+
+        return new DispatchPlan(song, velocityThreshold, chordNoteStarts, chordEntryStarts, entryBlocks, blockPositions, blockYaws, blockPitches);
+    }
+
+    /**
+     * Orders the notes of a chord so that the ones that matter most come first,
+     * which lets a packet budget shed notes by simply truncating the chord.
+     * Repeated notes are least important since they hit the same noteblock, followed by inner voices
+     * that are masked by the highest and lowest pitches of the chord. Within each group, louder notes come first.
+     */
+    private static class ChordSorter {
+        private static final int RANK_OUTER = 0;
+        private static final int RANK_INNER = 1;
+        private static final int RANK_DUPLICATE = 2;
+
+        int[] noteIds = new int[16];
+        int[] velocities = new int[16];
+        int[] ranks = new int[16];
+        int size = 0;
+        private final int[] seen = new int[400];
+        private int stamp = 0;
+
+        void clear() {
+            size = 0;
+        }
+
+        void add(int noteId, int velocity) {
+            if (size == noteIds.length) {
+                noteIds = Arrays.copyOf(noteIds, size * 2);
+                velocities = Arrays.copyOf(velocities, size * 2);
+                ranks = Arrays.copyOf(ranks, size * 2);
+            }
+            noteIds[size] = noteId;
+            velocities[size] = velocity;
+            size++;
+        }
+
+        void sortByPriority() {
+            if (size <= 1) {
+                return;
+            }
+
+            // Loudest first, so that the loudest of several identical notes is the one that isn't a duplicate
+            for (int i = 1; i < size; i++) {
+                for (int j = i; j > 0 && velocities[j] > velocities[j-1]; j--) {
+                    swap(j, j-1);
+                }
+            }
+
+            stamp++;
+            int lowestPitch = Integer.MAX_VALUE;
+            int highestPitch = Integer.MIN_VALUE;
+            for (int i = 0; i < size; i++) {
+                if (seen[noteIds[i]] == stamp) {
+                    ranks[i] = RANK_DUPLICATE;
+                } else {
+                    seen[noteIds[i]] = stamp;
+                    ranks[i] = RANK_OUTER;
+                    if (isPitched(noteIds[i])) {
+                        lowestPitch = Math.min(lowestPitch, getPitch(noteIds[i]));
+                        highestPitch = Math.max(highestPitch, getPitch(noteIds[i]));
+                    }
+                }
+            }
+            for (int i = 0; i < size; i++) {
+                if (ranks[i] == RANK_OUTER && isPitched(noteIds[i])) {
+                    int pitch = getPitch(noteIds[i]);
+                    if (pitch != lowestPitch && pitch != highestPitch) {
+                        ranks[i] = RANK_INNER;
+                    }
+                }
+            }
+
+            // Stable sort by rank keeps the velocity order within each rank
+            for (int i = 1; i < size; i++) {
+                for (int j = i; j > 0 && ranks[j] < ranks[j-1]; j--) {
+                    swap(j, j-1);
+                }
+            }
+        }
+
+        private void swap(int a, int b) {
+            int tmp = noteIds[a]; noteIds[a] = noteIds[b]; noteIds[b] = tmp;
+            tmp = velocities[a]; velocities[a] = velocities[b]; velocities[b] = tmp;
+            tmp = ranks[a]; ranks[a] = ranks[b]; ranks[b] = tmp;
+        }
+
+        // Percussion instruments have no pitch offset and are never considered inner voices
+        private static boolean isPitched(int noteId) {
+            return Instrument.getInstrumentFromId(noteId / 25).offset != 0;
+        }
+
+        private static int getPitch(int noteId) {
+            return Instrument.getInstrumentFromId(noteId / 25).offset + noteId % 25;
+        }
+    }
+
+    private static boolean isPlayable(Song song, int i, int[] noteBlockIndex, int velocityThreshold) {
+        return song.getVelocity(i) >= velocityThreshold && noteBlockIndex[song.getNoteId(i)] >= 0;
+    }
+
+    public boolean isValidFor(Song song, int velocityThreshold) {
+        return this.song == song && this.velocityThreshold == velocityThreshold;
+    }
+
+    // Returns the chord starting at the given song position
+    public int chordAt(int notePosition) {
+        int idx = Arrays.binarySearch(chordNoteStarts, 0, chordNoteStarts.length - 1, notePosition);
+        if (idx < 0) {
+            idx = -idx - 2; // Position is inside a chord, so use the chord that contains it
+        }
+        return Math.max(idx, 0);
+    }
+
+    // Same as chordAt(notePosition), but checks the chord the caller expects first, which makes sequential playback O(1)
+    public int chordAt(int notePosition, int expectedChord) {
+        if (expectedChord >= 0 && expectedChord < chordNoteStarts.length - 1 && chordNoteStarts[expectedChord] == notePosition) {
+            return expectedChord;
+        }
+        return chordAt(notePosition);
+    }
+
+    // Song position right after the chord
+    public int getChordEnd(int chord) {
+        return chordNoteStarts[chord + 1];
+    }
+
+    public int getChordCount() {
+        return chordNoteStarts.length - 1;
+    }
+
+    public int getChordNoteStart(int chord) {
+        return chordNoteStarts[chord];
+    }
+
+    public int getChordEntryStart(int chord) {
+        return chordEntryStarts[chord];
+    }
+
+    public int getChordEntryEnd(int chord) {
+        return chordEntryStarts[chord + 1];
+    }
+
+    public int getEntryBlock(int entry) {
+        return entryBlocks[entry];
+    }
+
+    public BlockPos getBlockPos(int block) {
+        return blockPositions[block];
+    }
+
+    public float getBlockYaw(int block) {
+        return blockYaws[block];
+    }
+
+    public float getBlockPitch(int block) {
+        return blockPitches[block];
+    }
+
+    public static float getLookYaw(double dx, double dz) {
+        return MathHelper.wrapDegrees((float) (MathHelper.atan2(dz, dx) * 57.2957763671875) - 90.0f);
+    }
+
+    public static float getLookPitch(double dx, double dy, double dz) {
+        double horizontalDist = Math.sqrt(dx * dx + dz * dz);
+        return MathHelper.wrapDegrees((float) (-(MathHelper.atan2(dy, horizontalDist) * 57.2957763671875)));
+    }
+}
@@ -0,0 +1,87 @@
+package com.github.hhhzzzsss.songplayer.playing;
+
+import net.minecraft.client.network.PendingUpdateManager;
+import net.minecraft.client.world.ClientWorld;
+import net.minecraft.network.ClientConnection;
+import net.minecraft.network.packet.c2s.play.HandSwingC2SPacket;
+import net.minecraft.network.packet.c2s.play.PlayerActionC2SPacket;
+import net.minecraft.network.packet.c2s.play.PlayerMoveC2SPacket;
+import net.minecraft.util.Hand;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Direction;
+
+/**
+ * Sends the packets that play the notes of a chord. Used by both frame-based and scheduled playback.
+ * Every note is a start-breaking packet, optionally preceded by a rotation and followed by a swing,
+ * and the chord ends with a single abort packet so that the server doesn't keep breaking the last noteblock.
+ * The client's own block-breaking state is left alone, and packets are sent straight on the ClientConnection,
+ * which forwards them to the network thread in the order they were sent.
+ * Start packets carry a block update sequence number that the client thread reserves with {@link #reserveSequence},
+ * so that strikeChord itself never touches the world and can be called from the scheduler thread.
+ */
+public class NoteStriker {
+    // The abort packet that ends every chord
+    public static final int PACKETS_PER_CHORD = 1;
+
+    private final ClientConnection connection;
+    private final ClientWorld world;
+    private final BlockPos stagePos;
+    private final boolean rotate;
+    private final boolean swing;
+
+    // Written by the client thread in reserveSequence, read by whichever thread strikes chords
+    private volatile int sequence = 0;
+    private volatile boolean sequenceUsed = true;
+
+    public NoteStriker(ClientConnection connection, ClientWorld world, BlockPos stagePos, boolean rotate, boolean swing) {
+        this.connection = connection;
+        this.world = world;
+        this.stagePos = stagePos;
+        this.rotate = rotate;
+        this.swing = swing;
+    }
+
+    // Packets sent for every note, which together with PACKETS_PER_CHORD is what playback charges to the packet budget
+    public int getPacketsPerNote() {
+        return 1 + (rotate ? 1 : 0) + (swing ? 1 : 0);
+    }
+
+    /**
+     * Takes a new sequence number from the world's PendingUpdateManager once the previous one has been sent.
+     * Must be called on the client thread, which is the only one that uses the manager.
+     * Notes played in the meantime share a number, which the server accepts since it only acknowledges the highest it received.
+     */
+    public void reserveSequence() {
+        if (sequenceUsed) {
+            try (PendingUpdateManager pendingUpdateManager = world.getPendingUpdateManager().incrementSequence()) {
+                sequence = pendingUpdateManager.getSequence();
+            }
+            sequenceUsed = false;
+        }
+    }
+
+    // Plays the given entries of a chord
+    public void strikeChord(DispatchPlan plan, int entryStart, int entryEnd) {
+        BlockPos lastPos = null;
+        for (int entry = entryStart; entry < entryEnd; entry++) {
+            int block = plan.getEntryBlock(entry);
+            BlockPos bp = plan.getBlockPos(block);
+            if (rotate) {
+                // Sent on ClientConnection instead of networkHandler because mixin overrides sendPacket on networkHandler
+                connection.send(new PlayerMoveC2SPacket.Full(
+                        stagePos.getX() + 0.5, stagePos.getY(), stagePos.getZ() + 0.5,
+                        plan.getBlockYaw(block), plan.getBlockPitch(block),
+                        true, false));
+            }
+            connection.send(new PlayerActionC2SPacket(PlayerActionC2SPacket.Action.START_DESTROY_BLOCK, bp, Direction.UP, sequence));
+            if (swing) {
+                connection.send(new HandSwingC2SPacket(Hand.MAIN_HAND));
+            }
+            lastPos = bp;
+        }
+        if (lastPos != null) {
+            sequenceUsed = true;
+            connection.send(new PlayerActionC2SPacket(PlayerActionC2SPacket.Action.ABORT_DESTROY_BLOCK, lastPos, Direction.UP));
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.github.hhhzzzsss.songplayer.playing;
+
+/**
+ * Limits the number of packets sent while playing, to stay below the packet spam limits of anti-cheat plugins.
+ * There is a budget per game tick (50ms window) and a per second budget that refills continuously.
+ * A limit of 0 means unlimited. Notes that don't fit in the budget are shed and counted.
+ * Shared between the main thread and the playback scheduler, hence the synchronization.
+ */
+public class PacketBudget {
+    private static final long TICK_NANOS = 50_000_000L;
+
+    private int perTick = 0;
+    private int perSecond = 0;
+
+    private long currentTick = Long.MIN_VALUE;
+    private int tickTokens = 0;
+    private double secondTokens = 0;
+    private long lastRefill = 0;
+
+    private long playedNotes = 0;
+    private long shedNotes = 0;
+
+    public synchronized void setLimits(int perTick, int perSecond) {
+        if (perTick != this.perTick || perSecond != this.perSecond) {
+            this.perTick = perTick;
+            this.perSecond = perSecond;
+            currentTick = Long.MIN_VALUE;
+            secondTokens = perSecond;
+            lastRefill = System.nanoTime();
+        }
+    }
+
+    /**
+     * Grants as many of the wanted notes as the budget allows and consumes the packets they need.
+     * Each note costs packetsPerNote packets, and a chord that plays anything costs an extra overhead packets.
+     * Chord entries are ordered by priority, so callers play the first granted notes and shed the rest.
+     */
+    public synchronized int acquireNotes(int wanted, int packetsPerNote, int overhead) {
+        if (wanted <= 0) {
+            return 0;
+        }
+        long available = Long.MAX_VALUE;
+        if (perTick > 0 || perSecond > 0) {
+            refill(System.nanoTime());
+            if (perTick > 0) {
+                available = Math.min(available, tickTokens);
+            }
+            if (perSecond > 0) {
+                available = Math.min(available, (long) secondTokens);
+            }
+        }
+
+        int granted = (int) Math.max(0, Math.min(wanted, (available - overhead) / packetsPerNote));
+        if (granted > 0) {
+            int packets = granted * packetsPerNote + overhead;
+            tickTokens -= packets;
+            secondTokens -= packets;
+        }
+        playedNotes += granted;
+        shedNotes += wanted - granted;
+        return granted;
+    }
+
+    private void refill(long now) {
+        long tick = now / TICK_NANOS;
+        if (tick != currentTick) {
+            currentTick = tick;
+            tickTokens = perTick;
+        }
+        if (perSecond > 0) {
+            secondTokens = Math.min(perSecond, secondTokens + (now - lastRefill) * perSecond / 1_000_000_000.0);
+        }
+        lastRefill = now;
+    }
+
+    public synchronized void resetCounters() {
+        playedNotes = 0;
+        shedNotes = 0;
+    }
+
+    public synchronized long getPlayedNotes() {
+        return playedNotes;
+    }
+
+    public synchronized long getShedNotes() {
+        return shedNotes;
+    }
+}
@@ -0,0 +1,136 @@
+package com.github.hhhzzzsss.songplayer.playing;
+
+import com.github.hhhzzzsss.songplayer.song.Song;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a song from its own thread so that note timing doesn't depend on the frame rate.
+ * This thread only decides when each chord is due, against System.nanoTime() deadlines.
+ * The chord itself is played by the same {@link NoteStriker} the frame-based path uses,
+ * whose packets are handed to the network thread in the order they were sent.
+ * A scheduler is bound to one song start time, so it has to be replaced whenever the song is moved, paused or looped.
+ */
+public class PlaybackScheduler extends Thread {
+    // parkNanos can oversleep, so the last stretch before a deadline is spent spinning
+    private static final long SPIN_NANOS = 100_000L;
+
+    public final Song song;
+    public final DispatchPlan plan;
+    public final long startTime;
+    private final long startNanos; // nanoTime corresponding to time 0 of the song
+    private final NoteStriker striker;
+    private final PacketBudget budget;
+    private final LatenessStats stats;
+
+    private volatile boolean running = true;
+    private volatile int position;
+    private int chord;
+
+    public PlaybackScheduler(Song song, DispatchPlan plan, NoteStriker striker, PacketBudget budget, LatenessStats stats) {
+        super("Playback Scheduler");
+        setDaemon(true);
+        setPriority(Thread.MAX_PRIORITY);
+        this.song = song;
+        this.plan = plan;
+        this.startTime = song.startTime;
+        this.startNanos = System.nanoTime() - (System.currentTimeMillis() - song.startTime) * 1_000_000L;
+        this.striker = striker;
+        this.budget = budget;
+        this.stats = stats;
+        this.position = song.position;
+        this.chord = song.position < song.size() ? plan.chordAt(song.position) : plan.getChordCount();
+    }
+
+    // Whether this scheduler is still in sync with the song, i.e. the song hasn't been moved or restarted since
+    public boolean isFor(Song song, DispatchPlan plan) {
+        return this.song == song && this.plan == plan && this.startTime == song.startTime;
+    }
+
+    // Song position of the next chord that hasn't been played yet
+    public int getPosition() {
+        return position;
+    }
+
+    // Called on the client thread every frame, so that the striker has a sequence number ready for the next chord
+    public void reserveSequence() {
+        striker.reserveSequence();
+    }
+
+    public void shutdown() {
+        running = false;
+        LockSupport.unpark(this);
+    }
+
+    @Override
+    public void run() {
+        int numChords = plan.getChordCount();
+        while (running && chord < numChords) {
+            long deadline = startNanos + song.getTime(plan.getChordNoteStart(chord)) * 1_000_000L;
+            if (!waitUntil(deadline)) {
+                break;
+            }
+
+            long lateness = System.nanoTime() - deadline;
+            int entryStart = plan.getChordEntryStart(chord);
+            int entryEnd = entryStart + budget.acquireNotes(plan.getChordEntryEnd(chord) - entryStart, striker.getPacketsPerNote(), NoteStriker.PACKETS_PER_CHORD);
+            if (entryEnd > entryStart) {
+                striker.strikeChord(plan, entryStart, entryEnd);
+                stats.record(lateness, entryEnd - entryStart);
+            }
+
+            chord++;
+            position = plan.getChordNoteStart(chord);
+        }
+    }
+
+    // Returns false if the scheduler was shut down while waiting
+    private boolean waitUntil(long deadline) {
+        long remaining;
+        while (running && (remaining = deadline - System.nanoTime()) > 0) {
+            if (remaining > SPIN_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_NANOS);
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+        return running;
+    }
+
+    /**
+     * How late notes were sent compared to their scheduled time.
+     * Written by the scheduler thread and read from the main thread, hence the synchronization.
+     */
+    public static class LatenessStats {
+        private long notes = 0;
+        private long chords = 0;
+        private long totalNanos = 0;
+        private long maxNanos = 0;
+
+        public synchronized void record(long latenessNanos, int numNotes) {
+            notes += numNotes;
+            chords++;
+            totalNanos += latenessNanos;
+            maxNanos = Math.max(maxNanos, latenessNanos);
+        }
+
+        public synchronized void reset() {
+            notes = 0;
+            chords = 0;
+            totalNanos = 0;
+            maxNanos = 0;
+        }
+
+        public synchronized long getNotes() {
+            return notes;
+        }
+
+        public synchronized double getMeanMillis() {
+            return chords == 0 ? 0.0 : totalNanos / (double) chords / 1_000_000.0;
+        }
+
+        public synchronized double getMaxMillis() {
+            return maxNanos / 1_000_000.0;
+        }
+    }
+}
@@ -23,13 +23,14 @@ import net.minecraft.util.Hand;
 import net.minecraft.util.hit.BlockHitResult;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.Direction;
-import net.minecraft.util.math.MathHelper;
 import net.minecraft.util.math.Vec3d;
 import net.minecraft.world.GameMode;
 
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.stream.Collectors;
 
 public class SongHandler {
@@ -42,8 +43,8 @@ public class SongHandler {
     }
     private SongHandler() {}
 
-    public SongLoaderThread loaderThread = null;
-    public LinkedList<Song> songQueue = new LinkedList<>();
+    // Only the head of the queue is loaded, so queued songs don't take up memory until they're about to play
+    public LinkedList<SongReference> songQueue = new LinkedList<>();
     public Song currentSong = null;
     public Playlist currentPlaylist = null;
     public Stage stage = null; // Only exists when playing
@@ -53,29 +54,36 @@ public class SongHandler {
     public boolean building = false;
     public boolean cleaningUp = false;
     public boolean dirty = false;
+    private DispatchPlan dispatchPlan = null;
+    private int nextChord = 0; // Chord of dispatchPlan that frame playback expects to play next
+    private PlaybackScheduler scheduler = null;
+    private CompletableFuture<Stage.TransitionPlan> nextStagePlan = null; // Planned while the song before it plays
+    private Song nextStagePlanSong = null;
+    public final PlaybackScheduler.LatenessStats playbackLateness = new PlaybackScheduler.LatenessStats();
+    public final PacketBudget packetBudget = new PacketBudget();
 
     public boolean wasFlying = false;
     public GameMode originalGamemode = GameMode.CREATIVE;
 
-    boolean playlistChecked = false;
+    int playlistFailuresReported = 0;
 
     public void onUpdate(boolean tick) {
         if (!cleaningUp) {
             // Check current playlist and load song from it if necessary
-            if (currentSong == null && currentPlaylist != null && currentPlaylist.loaded) {
-                if (!playlistChecked) {
-                    playlistChecked = true;
-                    if (currentPlaylist.songsFailedToLoad.size() > 0) {
-                        Util.showChatMessage("§c无法从播放列表加载以下歌曲: §4" + String.join(" ", currentPlaylist.songsFailedToLoad));
-                    }
+            // Songs are played as soon as they've loaded, while the rest of the playlist keeps loading
+            if (currentSong == null && currentPlaylist != null && currentPlaylist.isNextReady()) {
+                List<String> failedSongs = currentPlaylist.songsFailedToLoad;
+                if (failedSongs.size() > playlistFailuresReported) {
+                    Util.showChatMessage("§c无法从播放列表加载以下歌曲: §4" + String.join(" ", failedSongs.subList(playlistFailuresReported, failedSongs.size())));
+                    playlistFailuresReported = failedSongs.size();
                 }
                 Song nextSong = currentPlaylist.getNext();
-                if (currentPlaylist.songs.size() == 0) {
+                if (nextSong == null && !currentPlaylist.hasPlayableSongs()) {
                     Util.showChatMessage("§c播放列表没有可播放的歌曲");
-                    currentPlaylist = null;
+                    clearPlaylist();
                 } else if (nextSong == null) {
                     Util.showChatMessage("§6播放列表已播放完毕");
-                    currentPlaylist = null;
+                    clearPlaylist();
                 } else {
                     nextSong.reset();
                     setSong(nextSong);
@@ -83,28 +91,30 @@ public class SongHandler {
             }
 
             // Check queue and load song from it if necessary
-            if (currentSong == null && currentPlaylist == null && songQueue.size() > 0) {
-                setSong(songQueue.poll());
-            }
-
-            // Check if loader thread is finished and handle accordingly
-            if (loaderThread != null && !loaderThread.isAlive()) {
-                if (loaderThread.exception != null) {
-                    Util.showChatMessage("§c加载歌曲失败: §4" + loaderThread.exception.getMessage());
-                } else {
-                    if (currentSong == null) {
-                        setSong(loaderThread.song);
-                    } else {
-                        queueSong(loaderThread.song);
+            // The head of the queue starts loading while the current song is still playing, so that it's ready when that one ends
+            if (currentPlaylist == null && !songQueue.isEmpty()) {
+                CompletableFuture<Song> load = songQueue.peek().load();
+                if (currentSong == null && load.isDone()) {
+                    songQueue.poll();
+                    if (!load.isCancelled()) {
+                        try {
+                            setSong(load.join());
+                        } catch (CompletionException e) {
+                            Util.showChatMessage("§c加载歌曲失败: §4" + e.getCause().getMessage());
+                        }
                     }
                 }
-                loaderThread = null;
             }
         }
 
         // Run cached command if timeout reached
         checkCommandCache();
 
+        // The playback scheduler only runs while a song is actually being played
+        if (scheduler != null && (cleaningUp || currentSong == null || building)) {
+            stopScheduler();
+        }
+
         // If either playing or doing cleanup
         if (cleaningUp || currentSong != null) {
             // Handle creating/removing fake player depending on settings
@@ -153,6 +163,10 @@ public class SongHandler {
         // Otherwise, handle cleanup if necessary
         else {
             if (dirty) {
+                // Waits for the next song in the queue to load instead of cleaning up in between songs
+                if (!songQueue.isEmpty()) {
+                    return;
+                }
                 if (Config.getConfig().autoCleanup && originalBlocks.size() != 0 && !Config.getConfig().survivalOnly) {
                     partialResetAndCleanup();
                 } else {
@@ -167,18 +181,19 @@ public class SongHandler {
     }
 
     public void loadSong(String location) {
-        if (loaderThread != null) {
-            Util.showChatMessage("§c正在加载歌曲，无法加载另一首");
-        }
-        else if (currentPlaylist != null) {
+        if (currentPlaylist != null) {
             Util.showChatMessage("§c播放列表正在播放时无法加载歌曲");
         }
         else {
             try {
-                loaderThread = new SongLoaderThread(location);
+                SongLoadTask loader = new SongLoadTask(location);
 
                 // 添加进度监听器（只在进度百分比变化时显示，避免刷屏）
-                loaderThread.setProgressListener((percentage, stage) -> {
+                // Songs loaded ahead of time while another one plays load quietly
+                loader.setProgressListener((percentage, stage) -> SongPlayer.MC.execute(() -> {
+                    if (loader.isCancelled() || currentSong != null) {
+                        return;
+                    }
                     if (percentage >= 0 && percentage <= 100) {
                         // 只显示关键进度节点：每5%或100%
                         if (percentage % 5 == 0 || percentage == 100) {
@@ -188,54 +203,132 @@ public class SongHandler {
                         // 错误情况
                         Util.showChatMessage("§c" + stage);
                     }
-                });
+                }));
 
-                Util.showChatMessage("§6正在加载 §3" + location);
-                loaderThread.start();
+                loadSong(new SongReference(location, loader));
             } catch (IOException e) {
                 Util.showChatMessage("§c加载歌曲失败: §4" + e.getMessage());
             }
         }
     }
 
-    public void loadSong(SongLoaderThread thread) {
-        if (loaderThread != null) {
-            Util.showChatMessage("§c正在加载歌曲，无法加载另一首");
-        }
-        else if (currentPlaylist != null) {
+    public void loadSong(SongReference song) {
+        if (currentPlaylist != null) {
             Util.showChatMessage("§c播放列表正在播放时无法加载歌曲");
+            song.cancel();
         }
         else {
-            loaderThread = thread;
+            if (currentSong == null && songQueue.isEmpty()) {
+                Util.showChatMessage("§6正在加载 §3" + song.getName());
+            } else {
+                Util.showChatMessage("§6已将歌曲添加到队列: §3" + song.getName());
+            }
+            songQueue.add(song);
         }
     }
 
+    private void clearQueue() {
+        for (SongReference song : songQueue) {
+            song.cancel();
+        }
+        songQueue.clear();
+    }
+
     // Sets currentSong and sets everything up for building
     public void setSong(Song song) {
         dirty = true;
         currentSong = song;
-        building = true;
-        if (!Config.getConfig().survivalOnly) setCreativeIfNeeded();
+        dispatchPlan = null;
+        stopScheduler();
+        playbackLateness.reset();
+        packetBudget.resetCounters();
         if (Config.getConfig().doAnnouncement) {
             sendMessage(Config.getConfig().announcementMessage.replaceAll("\\[name\\]", song.name));
         }
-        if (!Config.getConfig().survivalOnly) getAndSaveBuildSlot();
+        Stage.TransitionPlan plan = takeStagePlan(song);
         prepareStage();
+
+        // Only the noteblocks that differ from the last song need to be built, and if there are none the song plays right away
+        if (plan != null && stage.applyTransition(plan)) {
+            recordStageBlocks();
+            if (stage.nothingToBuild()) {
+                building = false;
+                compileDispatchPlan();
+                Util.showChatMessage("§6Now playing §3" + song.name);
+                return;
+            }
+        }
+
+        building = true;
+        if (!Config.getConfig().survivalOnly) setCreativeIfNeeded();
+        if (!Config.getConfig().survivalOnly) getAndSaveBuildSlot();
         Util.showChatMessage("§6正在构建音符盒");
     }
 
-    private void queueSong(Song song) {
-        songQueue.add(song);
-        Util.showChatMessage("§6已将歌曲添加到队列: §3" + song.name);
+    // Takes the stage plan for this song if it was made and finished while the last song was playing
+    private Stage.TransitionPlan takeStagePlan(Song song) {
+        CompletableFuture<Stage.TransitionPlan> plan = nextStagePlan;
+        Song planSong = nextStagePlanSong;
+        clearStagePlan();
+        if (plan == null || planSong != song || stage == null || !plan.isDone() || plan.isCompletedExceptionally()) {
+            return null;
+        }
+        return plan.join();
+    }
+
+    // Plans the stage for whichever song plays next, as soon as it has loaded
+    private void planNextStage() {
+        if (Config.getConfig().survivalOnly) {
+            return;
+        }
+        Song nextSong = null;
+        if (currentPlaylist != null) {
+            nextSong = currentPlaylist.peekNext();
+        }
+        else if (!songQueue.isEmpty()) {
+            CompletableFuture<Song> load = songQueue.peek().load();
+            if (load.isDone() && !load.isCompletedExceptionally()) {
+                nextSong = load.join();
+            }
+        }
+        if (nextSong != null && nextSong != nextStagePlanSong) {
+            boolean[] stageNotes = currentPlaylist != null ? currentPlaylist.getNextStageNotes() : null;
+            clearStagePlan();
+            nextStagePlan = stage.planTransition(nextSong, stageNotes != null ? stageNotes : nextSong.requiredNotes);
+            nextStagePlanSong = nextSong;
+        }
+    }
+
+    // Notes the stage is built for. With a union stage, that's the notes of every playlist song that shares the stage.
+    private boolean[] getStageNotes() {
+        if (currentPlaylist != null && currentPlaylist.getCurrentStageNotes() != null) {
+            return currentPlaylist.getCurrentStageNotes();
+        }
+        return currentSong.requiredNotes;
+    }
+
+    private void clearStagePlan() {
+        if (nextStagePlan != null) {
+            nextStagePlan.cancel(false);
+        }
+        nextStagePlan = null;
+        nextStagePlanSong = null;
     }
 
     public void setPlaylist(Path playlist) {
-        if (loaderThread != null || currentSong != null || !songQueue.isEmpty()) {
+        if (currentSong != null || !songQueue.isEmpty()) {
             Util.showChatMessage("§c在播放其他内容时无法开始播放播放列表");
         }
         else {
-            currentPlaylist = new Playlist(playlist, Config.getConfig().loopPlaylists, Config.getConfig().shufflePlaylists);
-            playlistChecked = false;
+            currentPlaylist = new Playlist(playlist, Config.getConfig().loopPlaylists, Config.getConfig().shufflePlaylists, Config.getConfig().playlistUnionStage && !Config.getConfig().survivalOnly);
+            playlistFailuresReported = 0;
+        }
+    }
+
+    private void clearPlaylist() {
+        if (currentPlaylist != null) {
+            currentPlaylist.cancelLoading();
+            currentPlaylist = null;
         }
     }
 
@@ -245,6 +338,12 @@ public class SongHandler {
         }
     }
 
+    public void setPlaylistUnionStage(boolean unionStage) {
+        if (currentPlaylist != null) {
+            currentPlaylist.setUnionStage(unionStage && !Config.getConfig().survivalOnly);
+        }
+    }
+
     public void setPlaylistShuffle(boolean shuffle) {
         if (currentPlaylist != null) {
             currentPlaylist.setShuffle(shuffle);
@@ -282,7 +381,7 @@ public class SongHandler {
                 return;
             } else { // Check build status when end delay is over
                 if (!Config.getConfig().survivalOnly) {
-                    stage.checkBuildStatus(currentSong);
+                    stage.checkBuildStatus(getStageNotes());
                     recordStageBlocks();
                 } else {
                     try {
@@ -303,6 +402,7 @@ public class SongHandler {
                 setSurvivalIfNeeded();
                 restoreBuildSlot();
             }
+            compileDispatchPlan();
             stage.sendMovementPacketToStagePosition();
             Util.showChatMessage("§6Now playing §3" + currentSong.name);
         }
@@ -352,11 +452,11 @@ public class SongHandler {
                 .append(Text.literal("正在构建音符盒 | " ).formatted(Formatting.GOLD))
                 .append(Text.literal((stage.totalMissingNotes - stage.missingNotes.size()) + "/" + stage.totalMissingNotes).formatted(Formatting.DARK_AQUA));
         MutableText playlistText = Text.empty();
-        if (currentPlaylist != null && currentPlaylist.loaded) {
+        if (currentPlaylist != null) {
             playlistText = playlistText.append(Text.literal("播放列表: ").formatted(Formatting.GOLD))
                     .append(Text.literal(currentPlaylist.name).formatted(Formatting.BLUE))
                     .append(Text.literal(" | ").formatted(Formatting.GOLD))
-                    .append(Text.literal(String.format(" (%s/%s)", currentPlaylist.songNumber, currentPlaylist.songs.size())).formatted(Formatting.DARK_AQUA));
+                    .append(Text.literal(String.format(" (%s/%s)", currentPlaylist.songNumber, currentPlaylist.size())).formatted(Formatting.DARK_AQUA));
             if (currentPlaylist.loop) {
                 playlistText.append(Text.literal(" | 循环播放").formatted(Formatting.GOLD));
             }
@@ -374,14 +474,17 @@ public class SongHandler {
         }
 
         if (SongPlayer.MC.interactionManager.getCurrentGameMode() != GameMode.SURVIVAL) {
+            stopScheduler();
             currentSong.pause();
             return;
         }
 
         if (tick) {
             if (stage.hasBreakingModification()) {
+                dispatchPlan = null;
+                clearStagePlan(); // It was planned from the noteblocks as they were before
                 if (!Config.getConfig().survivalOnly) {
-                    stage.checkBuildStatus(currentSong);
+                    stage.checkBuildStatus(getStageNotes());
                     recordStageBlocks();
                 } else {
                     try {
@@ -394,6 +497,7 @@ public class SongHandler {
                 }
             }
             if (!stage.nothingToBuild()) { // Switch to building
+                stopScheduler();
                 building = true;
                 if (!Config.getConfig().survivalOnly) setCreativeIfNeeded();
                 stage.sendMovementPacketToStagePosition();
@@ -409,31 +513,84 @@ public class SongHandler {
                 Util.showChatMessage("§6舞台已被更改。正在重新构建！");
                 return;
             }
+            planNextStage();
         }
 
         currentSong.play();
 
-        boolean somethingPlayed = false;
-        currentSong.advanceTime();
-        while (currentSong.reachedNextNote()) {
-            Note note = currentSong.getNextNote();
-            if (note.velocity >= Config.getConfig().velocityThreshold) {
-                BlockPos bp = stage.noteblockPositions.get(note.noteId);
-                if (bp != null) {
-                    attackBlock(bp);
-                    somethingPlayed = true;
-                }
-            }
+        if (dispatchPlan == null || !dispatchPlan.isValidFor(currentSong, Config.getConfig().velocityThreshold)) {
+            compileDispatchPlan();
         }
-        if (somethingPlayed) {
-            stopAttack();
+
+        packetBudget.setLimits(Config.getConfig().packetsPerTick, Config.getConfig().packetsPerSecond);
+        currentSong.advanceTime();
+        if (Config.getConfig().precisePlayback) {
+            handleScheduledPlaying();
+        } else {
+            stopScheduler();
+            handleFramePlaying();
         }
 
         if (currentSong.finished()) {
+            stopScheduler();
             Util.showChatMessage("§6已完成播放 §3" + currentSong.name);
             currentSong = null;
         }
     }
+    // Plays every note that became due since the last frame
+    private void handleFramePlaying() {
+        NoteStriker striker = null;
+        int lastBlock = -1;
+        while (currentSong.reachedNextNote()) {
+            int chord = dispatchPlan.chordAt(currentSong.position, nextChord);
+            int entryStart = dispatchPlan.getChordEntryStart(chord);
+            if (striker == null) {
+                striker = createNoteStriker();
+            }
+            // Entries are ordered by priority, so notes over the packet budget are shed from the end of the chord
+            int entryEnd = entryStart + packetBudget.acquireNotes(dispatchPlan.getChordEntryEnd(chord) - entryStart, striker.getPacketsPerNote(), NoteStriker.PACKETS_PER_CHORD);
+            if (entryEnd > entryStart) {
+                striker.strikeChord(dispatchPlan, entryStart, entryEnd);
+                lastBlock = dispatchPlan.getEntryBlock(entryEnd - 1);
+            }
+            currentSong.position = dispatchPlan.getChordEnd(chord);
+            nextChord = chord + 1;
+        }
+        if (lastBlock >= 0) {
+            showStrike(dispatchPlan.getBlockYaw(lastBlock), dispatchPlan.getBlockPitch(lastBlock));
+        }
+    }
+    // Notes are played by the scheduler thread, so this only keeps it in sync with the song
+    private void handleScheduledPlaying() {
+        if (scheduler != null && scheduler.isFor(currentSong, dispatchPlan)) {
+            currentSong.position = scheduler.getPosition();
+        }
+        currentSong.checkLoop();
+        if (scheduler == null || !scheduler.isFor(currentSong, dispatchPlan)) {
+            stopScheduler();
+            scheduler = new PlaybackScheduler(
+                    currentSong, dispatchPlan, createNoteStriker(),
+                    packetBudget, playbackLateness);
+            scheduler.start();
+        }
+        scheduler.reserveSequence();
+    }
+    private NoteStriker createNoteStriker() {
+        NoteStriker striker = new NoteStriker(
+                SongPlayer.MC.player.networkHandler.getConnection(), SongPlayer.MC.world,
+                lastStage.position, Config.getConfig().rotate, Config.getConfig().swing);
+        striker.reserveSequence();
+        return striker;
+    }
+    private void stopScheduler() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler = null;
+        }
+    }
+    private void compileDispatchPlan() {
+        dispatchPlan = DispatchPlan.compile(currentSong, stage, Config.getConfig().velocityThreshold, SongPlayer.MC.player.getStandingEyeHeight());
+    }
     private void setPlayProgressDisplay() {
         long currentTime = Math.min(currentSong.time, currentSong.length);
         long totalTime = currentSong.length;
@@ -450,11 +607,11 @@ public class SongHandler {
             }
         }
         MutableText playlistText = Text.empty();
-        if (currentPlaylist != null && currentPlaylist.loaded) {
+        if (currentPlaylist != null) {
             playlistText = playlistText.append(Text.literal("Playlist: ").formatted(Formatting.GOLD))
                     .append(Text.literal(currentPlaylist.name).formatted(Formatting.BLUE))
                     .append(Text.literal(" | ").formatted(Formatting.GOLD))
-                    .append(Text.literal(String.format(" (%s/%s)", currentPlaylist.songNumber, currentPlaylist.songs.size())).formatted(Formatting.DARK_AQUA));
+                    .append(Text.literal(String.format(" (%s/%s)", currentPlaylist.songNumber, currentPlaylist.size())).formatted(Formatting.DARK_AQUA));
             if (currentPlaylist.loop) {
                 playlistText.append(Text.literal(" | Looping").formatted(Formatting.GOLD));
             }
@@ -675,8 +832,11 @@ public class SongHandler {
     // Resets all internal states like currentSong, and songQueue, which stops all actions
     public void reset() {
         currentSong = null;
-        currentPlaylist = null;
-        songQueue.clear();
+        dispatchPlan = null;
+        clearStagePlan();
+        stopScheduler();
+        clearPlaylist();
+        clearQueue();
         stage = null;
         buildSlot = -1;
         removeFakePlayer();
@@ -707,8 +867,9 @@ public class SongHandler {
     public void partialResetAndCleanup() {
         restoreBuildSlot();
         currentSong = null;
-        currentPlaylist = null;
-        songQueue.clear();
+        clearStagePlan();
+        clearPlaylist();
+        clearQueue();
         stage = null;
         buildSlot = -1;
         startCleanup();
@@ -723,9 +884,11 @@ public class SongHandler {
 
     // Runs every frame when player is not ingame
     public void onNotIngame() {
+        stopScheduler();
         currentSong = null;
-        currentPlaylist = null;
-        songQueue.clear();
+        clearStagePlan();
+        clearPlaylist();
+        clearQueue();
     }
 
     // Create stage if it doesn't exist and move the player to it
@@ -827,9 +990,6 @@ public class SongHandler {
         SongPlayer.MC.interactionManager.attackBlock(bp, Direction.UP);
         doSwingIfNeeded();
     }
-    private void stopAttack() {
-        SongPlayer.MC.interactionManager.cancelBlockBreaking();
-    }
     private void recordBlocks(Iterable<BlockPos> bpList) {
         for (BlockPos bp : bpList) {
             if (!originalBlocks.containsKey(bp)) {
@@ -875,19 +1035,33 @@ public class SongHandler {
             double d = lookX - (lastStage.position.getX() + 0.5);
             double e = lookY - (lastStage.position.getY() + SongPlayer.MC.player.getStandingEyeHeight());
             double f = lookZ - (lastStage.position.getZ() + 0.5);
-            double g = Math.sqrt(d * d + f * f);
-            float pitch = MathHelper.wrapDegrees((float) (-(MathHelper.atan2(e, g) * 57.2957763671875)));
-            float yaw = MathHelper.wrapDegrees((float) (MathHelper.atan2(f, d) * 57.2957763671875) - 90.0f);
+            sendRotation(DispatchPlan.getLookYaw(d, f), DispatchPlan.getLookPitch(d, e, f));
+        }
+    }
+    private void sendRotation(float yaw, float pitch) {
+        if (fakePlayer != null) {
+            fakePlayer.setPitch(pitch);
+            fakePlayer.setYaw(yaw);
+            fakePlayer.setHeadYaw(yaw);
+        }
+        // Send on ClientConnection instead of networkHandler because mixin overrides sendPacket on networkHandler
+        SongPlayer.MC.player.networkHandler.getConnection().send(new PlayerMoveC2SPacket.Full(
+                lastStage.position.getX() + 0.5, lastStage.position.getY(), lastStage.position.getZ() + 0.5,
+                yaw, pitch,
+                true, false));
+    }
+    // The note striker only sends packets, so the look and swing of the last note played are shown locally here
+    private void showStrike(float yaw, float pitch) {
+        if (Config.getConfig().rotate && fakePlayer != null) {
+            fakePlayer.setPitch(pitch);
+            fakePlayer.setYaw(yaw);
+            fakePlayer.setHeadYaw(yaw);
+        }
+        if (Config.getConfig().swing) {
+            SongPlayer.MC.player.swingHand(Hand.MAIN_HAND, false);
             if (fakePlayer != null) {
-                fakePlayer.setPitch(pitch);
-                fakePlayer.setYaw(yaw);
-                fakePlayer.setHeadYaw(yaw);
-            }
-            // Send on ClientConnection instead of networkHandler because mixin overrides sendPacket on networkHandler
-            SongPlayer.MC.player.networkHandler.getConnection().send(new PlayerMoveC2SPacket.Full(
-                    lastStage.position.getX() + 0.5, lastStage.position.getY(), lastStage.position.getZ() + 0.5,
-                    yaw, pitch,
-                    true, false));
+                fakePlayer.swingHand(Hand.MAIN_HAND);
+            }
         }
     }
     private void doSwingIfNeeded() {
@@ -13,6 +13,7 @@ import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.Vec3d;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 public class Stage {
@@ -46,6 +47,19 @@ public class Stage {
 		System.out.println("服务器标识符: " + serverIdentifier);
 	}
 
+	// Stage that is only used for its layout
+	private Stage(BlockPos position) {
+		this.position = position;
+	}
+
+	// Number of noteblocks that fit in a stage of this type
+	public static int getCapacity(StageType stageType) {
+		Stage stage = new Stage(BlockPos.ORIGIN);
+		ArrayList<BlockPos> noteblockLocations = new ArrayList<>();
+		stage.loadBlocks(stageType, noteblockLocations, new HashSet<>());
+		return new HashSet<>(noteblockLocations).size();
+	}
+
 	public void movePlayerToStagePosition() {
 		MC.player.refreshPositionAndAngles(position.getX() + 0.5, position.getY() + 0.0, position.getZ() + 0.5, MC.player.getYaw(), MC.player.getPitch());
 		MC.player.setVelocity(Vec3d.ZERO);
@@ -60,24 +74,21 @@ public class Stage {
 				true, false));
 	}
 
-	public void checkBuildStatus(Song song) {
+	// Required notes are usually those of the song, but can be more when one stage is built for several songs
+	public void checkBuildStatus(boolean[] requiredNotes) {
 		noteblockPositions.clear();
 		missingNotes.clear();
 
 		// Add all required notes to missingNotes
 		for (int i=0; i<400; i++) {
-			if (song.requiredNotes[i]) {
+			if (requiredNotes[i]) {
 				missingNotes.add(i);
 			}
 		}
 
 		ArrayList<BlockPos> noteblockLocations = new ArrayList<>();
 		HashSet<BlockPos> breakLocations = new HashSet<>();
-		switch (Config.getConfig().stageType) {
-			case DEFAULT -> loadDefaultBlocks(noteblockLocations, breakLocations);
-			case WIDE -> loadWideBlocks(noteblockLocations, breakLocations);
-			case SPHERICAL -> loadSphericalBlocks(noteblockLocations, breakLocations);
-		}
+		loadBlocks(Config.getConfig().stageType, noteblockLocations, breakLocations);
 
 		// Sorting noteblock and break locations
 		noteblockLocations.sort((a, b) -> {
@@ -250,6 +261,72 @@ public class Stage {
 		}
 	}
 
+	/**
+	 * Works out the stage for the next song from the noteblocks that are already in place, so that changing songs only touches
+	 * the noteblocks that differ. Noteblocks the next song also uses stay where they are, and the rest are retuned for its
+	 * missing notes. This doesn't look at the world, so it runs in the background while the current song is playing.
+	 * The plan is null if the stage doesn't have enough noteblocks to reuse, in which case the build status has to be checked as usual.
+	 */
+	public CompletableFuture<TransitionPlan> planTransition(Song nextSong, boolean[] requiredNotes) {
+		HashMap<Integer, BlockPos> basePositions = new HashMap<>(noteblockPositions);
+		return CompletableFuture.supplyAsync(() -> {
+			HashMap<Integer, BlockPos> plannedPositions = new HashMap<>();
+			TreeSet<Integer> plannedMissingNotes = new TreeSet<>();
+			ArrayList<BlockPos> reusableLocations = new ArrayList<>();
+			for (int noteId=0; noteId<400; noteId++) {
+				BlockPos bp = basePositions.get(noteId);
+				if (requiredNotes[noteId]) {
+					if (bp != null) {
+						plannedPositions.put(noteId, bp);
+					}
+					else {
+						plannedMissingNotes.add(noteId);
+					}
+				}
+				else if (bp != null) {
+					reusableLocations.add(bp);
+				}
+			}
+
+			if (plannedMissingNotes.size() > reusableLocations.size()) {
+				return null;
+			}
+			int idx = 0;
+			for (int noteId : plannedMissingNotes) {
+				plannedPositions.put(noteId, reusableLocations.get(idx++));
+			}
+			return new TransitionPlan(nextSong, basePositions, plannedPositions, plannedMissingNotes);
+		});
+	}
+
+	/**
+	 * Switches the stage over to a plan from {@link #planTransition(Song, boolean[])}, leaving only the noteblocks that differ to be built.
+	 * Returns false if the stage has changed since the plan was made, in which case nothing is changed.
+	 */
+	public boolean applyTransition(TransitionPlan plan) {
+		if (!plan.basePositions.equals(noteblockPositions) || hasBreakingModification()) {
+			return false;
+		}
+		noteblockPositions = new HashMap<>(plan.noteblockPositions);
+		missingNotes = new TreeSet<>(plan.missingNotes);
+		requiredBreaks.clear();
+		totalMissingNotes = missingNotes.size();
+		return true;
+	}
+
+	public static class TransitionPlan {
+		public final Song song;
+		private final HashMap<Integer, BlockPos> basePositions;
+		private final HashMap<Integer, BlockPos> noteblockPositions;
+		private final TreeSet<Integer> missingNotes;
+		private TransitionPlan(Song song, HashMap<Integer, BlockPos> basePositions, HashMap<Integer, BlockPos> noteblockPositions, TreeSet<Integer> missingNotes) {
+			this.song = song;
+			this.basePositions = basePositions;
+			this.noteblockPositions = noteblockPositions;
+			this.missingNotes = missingNotes;
+		}
+	}
+
 	public class NotEnoughInstrumentsException extends Exception {
 		public int[] requiredInstruments;
 		public int[] foundInstruments;
@@ -275,6 +352,14 @@ public class Stage {
 		}
 	}
 
+	void loadBlocks(StageType stageType, Collection<BlockPos> noteblockLocations, Collection<BlockPos> breakLocations) {
+		switch (stageType) {
+			case DEFAULT -> loadDefaultBlocks(noteblockLocations, breakLocations);
+			case WIDE -> loadWideBlocks(noteblockLocations, breakLocations);
+			case SPHERICAL -> loadSphericalBlocks(noteblockLocations, breakLocations);
+		}
+	}
+
 	void loadDefaultBlocks(Collection<BlockPos> noteblockLocations, Collection<BlockPos> breakLocations) {
 		for (int dx = -4; dx <= 4; dx++) {
 			for (int dz = -4; dz <= 4; dz++) {
@@ -0,0 +1,275 @@
+package com.github.hhhzzzsss.songplayer.song;
+
+import java.util.Arrays;
+
+/**
+ * Columnar storage for the notes of a song.
+ * Each note takes 11 bytes spread over three primitive arrays instead of a boxed Note object.
+ */
+public class NoteStore {
+	private static final int DEFAULT_CAPACITY = 64;
+
+	private long[] times;
+	private short[] noteIds;
+	private byte[] velocities;
+	private int size = 0;
+	// Whether times are non-decreasing, which is what allows seeking by binary search
+	private boolean timeSorted = true;
+
+	public NoteStore() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public NoteStore(int capacity) {
+		capacity = Math.max(capacity, 1);
+		times = new long[capacity];
+		noteIds = new short[capacity];
+		velocities = new byte[capacity];
+	}
+
+	public void add(int noteId, long time, int velocity) {
+		if (size == times.length) {
+			grow(size + 1);
+		}
+		if (size > 0 && time < times[size-1]) {
+			timeSorted = false;
+		}
+		times[size] = time;
+		noteIds[size] = (short) noteId;
+		velocities[size] = (byte) Math.max(0, Math.min(velocity, 127));
+		size++;
+	}
+
+	public long getTime(int i) {
+		return times[i];
+	}
+
+	public int getNoteId(int i) {
+		return noteIds[i];
+	}
+
+	public int getVelocity(int i) {
+		return velocities[i];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	// Returns a detached Note for legacy callers. Changes to it are not written back.
+	public Note get(int i) {
+		if (i < 0 || i >= size) {
+			throw new IndexOutOfBoundsException("Index " + i + " out of bounds for length " + size);
+		}
+		return new Note(noteIds[i], times[i], velocities[i]);
+	}
+
+	public void shiftTimes(long delta) {
+		for (int i = 0; i < size; i++) {
+			times[i] += delta;
+		}
+	}
+
+	public void ensureCapacity(int capacity) {
+		if (capacity > times.length) {
+			grow(capacity);
+		}
+	}
+
+	public void trimToSize() {
+		if (size < times.length) {
+			resize(Math.max(size, 1));
+		}
+	}
+
+	// Bytes taken up by the note arrays, including unused capacity
+	public long getMemoryUsage() {
+		return (long) times.length * (Long.BYTES + Short.BYTES + Byte.BYTES);
+	}
+
+	// Independent copy with arrays trimmed to the number of notes
+	public NoteStore copy() {
+		NoteStore copy = new NoteStore(size);
+		System.arraycopy(times, 0, copy.times, 0, size);
+		System.arraycopy(noteIds, 0, copy.noteIds, 0, size);
+		System.arraycopy(velocities, 0, copy.velocities, 0, size);
+		copy.size = size;
+		copy.timeSorted = timeSorted;
+		return copy;
+	}
+
+	public void clear() {
+		size = 0;
+		timeSorted = true;
+	}
+
+	/**
+	 * Returns the index of the first note whose time is at or after t, or size() if there is none.
+	 * Runs in O(log n) once the notes are sorted, and falls back to a linear scan otherwise.
+	 */
+	public int firstIndexAtOrAfter(long t) {
+		if (!timeSorted) {
+			int i = 0;
+			while (i < size && times[i] < t) {
+				i++;
+			}
+			return i;
+		}
+		int lo = 0;
+		int hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (times[mid] < t) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Merges repeated hits of the same note id into the first hit, keeping the highest velocity.
+	 * Hits at the same time are always merged, and hits less than windowMs apart are merged as well.
+	 * Since a noteblock can only sound once per tick, the merged hits would only have cost packets.
+	 * Notes must be sorted. Returns the number of notes removed.
+	 */
+	public int deduplicate(long windowMs) {
+		int[] lastKept = new int[400];
+		Arrays.fill(lastKept, -1);
+		int kept = 0;
+		for (int i = 0; i < size; i++) {
+			int noteId = noteIds[i];
+			int prev = lastKept[noteId];
+			if (prev >= 0) {
+				long delta = times[i] - times[prev];
+				if (delta == 0 || delta < windowMs) {
+					velocities[prev] = (byte) Math.max(velocities[prev], velocities[i]);
+					continue;
+				}
+			}
+			times[kept] = times[i];
+			noteIds[kept] = noteIds[i];
+			velocities[kept] = velocities[i];
+			lastKept[noteId] = kept;
+			kept++;
+		}
+		int removed = size - kept;
+		size = kept;
+		return removed;
+	}
+
+	/**
+	 * Sorts notes by time, then by note id, matching the ordering of {@link Note#compareTo}.
+	 * Each note is packed into a single long so that the sort runs on primitives.
+	 */
+	public void sort() {
+		long[] keys = new long[size];
+		for (int i = 0; i < size; i++) {
+			keys[i] = packKey(times[i], noteIds[i], velocities[i]);
+		}
+		Arrays.sort(keys);
+		for (int i = 0; i < size; i++) {
+			setFromKey(i, keys[i]);
+		}
+		timeSorted = true;
+	}
+
+	/**
+	 * Appends runs of packed notes that are each sorted already, merging them into a single sorted sequence.
+	 * The k-way merge over a heap of run heads takes O(n log k) instead of the O(n log n) of sorting everything again.
+	 * Equal keys are taken from the lower run first, though they describe identical notes anyway.
+	 */
+	public void addSortedRuns(long[][] runs, int[] runLengths) {
+		int total = 0;
+		for (int length : runLengths) {
+			total += length;
+		}
+		ensureCapacity(size + total);
+		boolean wasSorted = timeSorted && (size == 0 || total == 0 || times[size-1] <= minRunTime(runs, runLengths));
+
+		int[] heap = new int[runs.length];
+		int[] positions = new int[runs.length];
+		int heapSize = 0;
+		for (int run = 0; run < runs.length; run++) {
+			if (runLengths[run] > 0) {
+				heap[heapSize++] = run;
+			}
+		}
+		for (int i = heapSize / 2 - 1; i >= 0; i--) {
+			siftDown(heap, heapSize, i, runs, positions);
+		}
+		while (heapSize > 0) {
+			int run = heap[0];
+			setFromKey(size++, runs[run][positions[run]++]);
+			if (positions[run] == runLengths[run]) {
+				heap[0] = heap[--heapSize];
+			}
+			siftDown(heap, heapSize, 0, runs, positions);
+		}
+		timeSorted = wasSorted;
+	}
+
+	private static long minRunTime(long[][] runs, int[] runLengths) {
+		long min = Long.MAX_VALUE;
+		for (int run = 0; run < runs.length; run++) {
+			if (runLengths[run] > 0) {
+				min = Math.min(min, runs[run][0] >> 16);
+			}
+		}
+		return min;
+	}
+
+	private static void siftDown(int[] heap, int heapSize, int i, long[][] runs, int[] positions) {
+		while (true) {
+			int smallest = i;
+			int left = 2*i + 1;
+			int right = left + 1;
+			if (left < heapSize && runHeadLess(heap[left], heap[smallest], runs, positions)) {
+				smallest = left;
+			}
+			if (right < heapSize && runHeadLess(heap[right], heap[smallest], runs, positions)) {
+				smallest = right;
+			}
+			if (smallest == i) {
+				return;
+			}
+			int tmp = heap[i];
+			heap[i] = heap[smallest];
+			heap[smallest] = tmp;
+			i = smallest;
+		}
+	}
+
+	private static boolean runHeadLess(int a, int b, long[][] runs, int[] positions) {
+		long keyA = runs[a][positions[a]];
+		long keyB = runs[b][positions[b]];
+		return keyA < keyB || (keyA == keyB && a < b);
+	}
+
+	// Note ids fit in 9 bits and velocities in 7 bits, which leaves 48 bits for the time
+	public static long packKey(long time, int noteId, int velocity) {
+		return (time << 16) | ((long) noteId << 7) | velocity;
+	}
+
+	private void setFromKey(int i, long key) {
+		times[i] = key >> 16;
+		noteIds[i] = (short) ((key >>> 7) & 0x1FF);
+		velocities[i] = (byte) (key & 0x7F);
+	}
+
+	private void grow(int minCapacity) {
+		int newCapacity = times.length + (times.length >> 1);
+		resize(Math.max(newCapacity, minCapacity));
+	}
+
+	private void resize(int capacity) {
+		times = Arrays.copyOf(times, capacity);
+		noteIds = Arrays.copyOf(noteIds, capacity);
+		velocities = Arrays.copyOf(velocities, capacity);
+	}
+}
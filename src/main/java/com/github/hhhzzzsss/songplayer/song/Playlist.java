@@ -1,7 +1,9 @@
 package com.github.hhhzzzsss.songplayer.song;
 
+import com.github.hhhzzzsss.songplayer.Config;
 import com.github.hhhzzzsss.songplayer.SongPlayer;
 import com.github.hhhzzzsss.songplayer.Util;
+import com.github.hhhzzzsss.songplayer.playing.Stage;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 
@@ -13,6 +15,7 @@ import java.lang.reflect.Type;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -23,58 +26,237 @@ public class Playlist {
     public String name;
     public boolean loop = false;
     public boolean shuffle = false;
+    public boolean unionStage = false;
 
     public List<String> index;
-    public List<Path> songFiles;
-    public List<Song> songs = new ArrayList<>();
-    public List<Integer> ordering = null;
+    public List<Path> songFiles = List.of();
+    // Loads of the songs by index, null for songs that aren't loaded. Futures publish each song safely to the client thread,
+    // which is the only one using the playlist.
+    private CompletableFuture<Song>[] songLoads = new CompletableFuture[0];
+    private boolean[] failed = new boolean[0];
+    // Loaded songs outside of the prefetch window, least recently used first
+    private final LinkedHashSet<Integer> retained = new LinkedHashSet<>();
+    private int currentIndex = -1;
+    public List<Integer> ordering = new ArrayList<>();
     public int songNumber = 0;
-    public boolean loaded = false;
     public ArrayList<String> songsFailedToLoad = new ArrayList<>();
 
-    public Playlist(Path directory, boolean loop, boolean shuffle) {
+    // Only used with a union stage
+    private CompletableFuture<Song>[] noteScanLoads = new CompletableFuture[0]; // Cleared as they finish, so the songs can be freed
+    private CompletableFuture<Void> noteScan = null;
+    private boolean[][] songNotes = new boolean[0][]; // Required notes by index, null for songs that failed to load
+    private boolean[][] stageNotes = null; // Notes of the stage that each position in the ordering is played on
+    private boolean[] currentStageNotes = null;
+
+    public Playlist(Path directory, boolean loop, boolean shuffle, boolean unionStage) {
         this.name = directory.getFileName().toString();
         this.loop = loop;
         this.shuffle = shuffle;
-        this.setShuffle(this.shuffle);
+        this.unionStage = unionStage;
         if (Files.isDirectory(directory)) {
             index = validateAndLoadIndex(directory);
             songFiles = index.stream()
                     .map(name -> directory.resolve(name))
                     .collect(Collectors.toList());
-            (new PlaylistLoaderThread()).start();
-        } else {
-            ordering = new ArrayList<>();
-            loaded = true;
+            songLoads = new CompletableFuture[songFiles.size()];
+            failed = new boolean[songFiles.size()];
+            songNotes = new boolean[songFiles.size()][];
+            loadOrdering(shuffle);
+        }
+        if (unionStage) {
+            startNoteScan();
         }
     }
 
-    private class PlaylistLoaderThread extends Thread {
-        @Override
-        public void run() {
-            for (Path file : songFiles) {
-                SongLoaderThread slt = new SongLoaderThread(file);
-                slt.run();
-                if (slt.exception != null) {
-                    songsFailedToLoad.add(file.getFileName().toString());
-                } else {
-                    songs.add(slt.song);
+    /**
+     * Only the current song and the next few songs in the ordering are loaded, in parallel on the loader threads.
+     * Songs that leave this window are kept for when they come around again, but the least recently played ones are dropped
+     * once loaded songs take up more than the memory budget. So memory use doesn't grow with the size of the playlist.
+     */
+    private void updateWindow() {
+        Set<Integer> window = new HashSet<>();
+        if (currentIndex >= 0) {
+            window.add(currentIndex);
+        }
+        // The next song is always loaded, even if prefetching is turned off
+        int prefetchCount = Math.max(Config.getConfig().playlistPrefetchCount, 1);
+        int upcoming = 0;
+        for (int pos = songNumber; pos < ordering.size() && upcoming < prefetchCount; pos++) {
+            int i = ordering.get(pos);
+            if (failed[i]) {
+                continue;
+            }
+            upcoming++;
+            window.add(i);
+            retained.remove(i);
+            if (songLoads[i] == null) {
+                songLoads[i] = SongLoader.load(new SongLoadTask(songFiles.get(i)));
+            }
+        }
+
+        long memoryUsage = 0;
+        for (int i = 0; i < songLoads.length; i++) {
+            CompletableFuture<Song> load = songLoads[i];
+            if (load == null || window.contains(i)) {
+                if (load != null && load.isDone() && !load.isCompletedExceptionally()) {
+                    memoryUsage += load.join().getMemoryUsage();
+                }
+                continue;
+            }
+            if (!load.isDone() || load.isCompletedExceptionally()) {
+                // Prefetches that are no longer wanted, for example after a reshuffle
+                load.cancel(false);
+                songLoads[i] = null;
+            } else {
+                retained.add(i);
+                memoryUsage += load.join().getMemoryUsage();
+            }
+        }
+
+        long memoryBudget = Config.getConfig().playlistMemoryBudget * 1024L * 1024L;
+        Iterator<Integer> itr = retained.iterator();
+        while (memoryUsage > memoryBudget && itr.hasNext()) {
+            int i = itr.next();
+            memoryUsage -= songLoads[i].join().getMemoryUsage();
+            songLoads[i] = null;
+            itr.remove();
+        }
+    }
+
+    // Cancels loads that haven't finished yet
+    public void cancelLoading() {
+        for (CompletableFuture<Song> load : songLoads) {
+            if (load != null) {
+                load.cancel(false);
+            }
+        }
+        for (CompletableFuture<Song> load : noteScanLoads) {
+            if (load != null) {
+                load.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Loads every song once in the background to find out which notes it needs. Only the notes are kept, so memory use stays
+     * low no matter how big the playlist is. Songs that are already loaded aren't loaded again.
+     */
+    private void startNoteScan() {
+        ArrayList<CompletableFuture<?>> scans = new ArrayList<>();
+        noteScanLoads = new CompletableFuture[songFiles.size()];
+        for (int i = 0; i < songFiles.size(); i++) {
+            int index = i;
+            CompletableFuture<Song> load = songLoads[i];
+            if (load == null) {
+                load = SongLoader.load(new SongLoadTask(songFiles.get(i)));
+                noteScanLoads[i] = load;
+            }
+            scans.add(load.handle((song, e) -> {
+                if (song != null) {
+                    songNotes[index] = song.requiredNotes.clone();
+                }
+                noteScanLoads[index] = null;
+                return null;
+            }));
+        }
+        // The notes are read on the client thread once allOf completes, which makes the writes from the loader threads visible
+        noteScan = CompletableFuture.allOf(scans.toArray(new CompletableFuture[0]));
+    }
+
+    /**
+     * Groups the songs that haven't been played yet so that the notes of each group fit on a single stage, with each group
+     * played back to back. If the whole playlist fits, it stays in its order and the stage only has to be built once.
+     * Otherwise each group starts from the next song in the order and greedily takes whichever remaining song adds the fewest
+     * new notes, which keeps the number of rebuilds low.
+     */
+    private void arrangeForStage() {
+        int capacity = Stage.getCapacity(Config.getConfig().stageType);
+        stageNotes = new boolean[ordering.size()][];
+        LinkedList<Integer> remaining = new LinkedList<>(ordering.subList(songNumber, ordering.size()));
+
+        boolean[] union = new boolean[400];
+        int unionSize = 0;
+        for (int i : remaining) {
+            unionSize += addNotes(union, i);
+        }
+        if (unionSize <= capacity) {
+            Arrays.fill(stageNotes, songNumber, ordering.size(), union);
+            return;
+        }
+
+        int pos = songNumber;
+        while (!remaining.isEmpty()) {
+            boolean[] group = new boolean[400];
+            int groupStart = pos;
+            int first = remaining.poll();
+            int groupSize = addNotes(group, first);
+            ordering.set(pos++, first);
+            while (true) {
+                int best = -1;
+                int bestAdded = Integer.MAX_VALUE;
+                for (int i : remaining) {
+                    int added = countNewNotes(group, i);
+                    if (added < bestAdded && groupSize + added <= capacity) {
+                        best = i;
+                        bestAdded = added;
+                    }
+                }
+                if (best == -1) {
+                    break;
+                }
+                remaining.remove((Integer) best);
+                groupSize += addNotes(group, best);
+                ordering.set(pos++, best);
+            }
+            Arrays.fill(stageNotes, groupStart, pos, group);
+        }
+        updateWindow();
+    }
+
+    private int countNewNotes(boolean[] notes, int index) {
+        int count = 0;
+        if (songNotes[index] != null) {
+            for (int noteId = 0; noteId < 400; noteId++) {
+                if (songNotes[index][noteId] && !notes[noteId]) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    // Adds the notes of a song to a set of notes, returning how many weren't in it already
+    private int addNotes(boolean[] notes, int index) {
+        int added = 0;
+        if (songNotes[index] != null) {
+            for (int noteId = 0; noteId < 400; noteId++) {
+                if (songNotes[index][noteId] && !notes[noteId]) {
+                    notes[noteId] = true;
+                    added++;
                 }
             }
-            // Don't run loadOrdering asynchronously to avoid concurrency issues
-            SongPlayer.MC.execute(() -> {
-                loadOrdering(shuffle);
-                loaded = true;
-            });
         }
+        return added;
+    }
+
+    public int size() {
+        return songFiles.size();
     }
 
     public void setLoop(boolean loop) {
         this.loop = loop;
     }
 
+    public void setUnionStage(boolean unionStage) {
+        this.unionStage = unionStage;
+        stageNotes = null;
+        if (unionStage && noteScan == null) {
+            startNoteScan();
+        }
+    }
+
     public void setShuffle(boolean shuffle) {
-        if (this.shuffle != shuffle && loaded) {
+        if (this.shuffle != shuffle) {
             loadOrdering(shuffle);
         }
         this.shuffle = shuffle;
@@ -83,26 +265,101 @@ public class Playlist {
     public void loadOrdering(boolean shouldShuffle) {
         songNumber = 0;
         ordering = new ArrayList<>();
-        for (int i = 0; i < songs.size(); i++) {
+        for (int i = 0; i < songFiles.size(); i++) {
             ordering.add(i);
         }
         if (shouldShuffle) {
             Collections.shuffle(ordering);
         }
+        stageNotes = null;
+        updateWindow();
     }
 
-    public Song getNext() {
-        if (songs.isEmpty()) return null;
-
-        if (songNumber >= songs.size()) {
-            if (loop) {
+    /**
+     * Returns whether the next song has loaded, or whether there is no next song.
+     * Songs that failed to load are skipped and added to songsFailedToLoad.
+     */
+    public boolean isNextReady() {
+        // With a union stage, nothing plays until the songs have been grouped by their notes
+        if (unionStage && !noteScan.isDone()) {
+            return false;
+        }
+        int skipped = 0;
+        while (true) {
+            if (songNumber >= ordering.size()) {
+                // Stops looping once a whole pass has failed to load
+                if (!loop || ordering.isEmpty() || skipped >= ordering.size()) {
+                    return true;
+                }
                 loadOrdering(shuffle);
-            } else {
-                return null;
             }
+            if (unionStage && stageNotes == null) {
+                arrangeForStage();
+            }
+            int i = ordering.get(songNumber);
+            if (!failed[i]) {
+                if (songLoads[i] == null) {
+                    updateWindow();
+                }
+                CompletableFuture<Song> load = songLoads[i];
+                if (!load.isDone()) {
+                    return false;
+                }
+                if (!load.isCompletedExceptionally()) {
+                    return true;
+                }
+                failed[i] = true;
+                songLoads[i] = null;
+                songsFailedToLoad.add(songFiles.get(i).getFileName().toString());
+            }
+            songNumber++;
+            skipped++;
+        }
+    }
+
+    // Returns the next song, or null if there are no more songs. Should only be called once isNextReady() returns true.
+    public Song getNext() {
+        if (!isNextReady() || songNumber >= ordering.size()) {
+            return null;
+        }
+        currentStageNotes = getNextStageNotes();
+        currentIndex = ordering.get(songNumber++);
+        Song song = songLoads[currentIndex].join();
+        updateWindow();
+        return song;
+    }
+
+    // Returns the next song without moving on to it, or null if it hasn't loaded yet or there are no more songs
+    public Song peekNext() {
+        if (!isNextReady() || songNumber >= ordering.size()) {
+            return null;
+        }
+        return songLoads[ordering.get(songNumber)].join();
+    }
+
+    /**
+     * Notes of the stage for the current song, which with a union stage covers every song of its group.
+     * Null if the stage should just be built for the song.
+     */
+    public boolean[] getCurrentStageNotes() {
+        return currentStageNotes;
+    }
+
+    // Same as getCurrentStageNotes, but for the song that peekNext returns
+    public boolean[] getNextStageNotes() {
+        if (!unionStage || stageNotes == null || songNumber >= ordering.size()) {
+            return null;
         }
+        return stageNotes[songNumber];
+    }
 
-        return songs.get(ordering.get(songNumber++));
+    public boolean hasPlayableSongs() {
+        for (boolean songFailed : failed) {
+            if (!songFailed) {
+                return true;
+            }
+        }
+        return false;
     }
 
     private static List<String> validateAndLoadIndex(Path directory) {
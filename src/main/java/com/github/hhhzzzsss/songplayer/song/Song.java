@@ -1,10 +1,7 @@
 package com.github.hhhzzzsss.songplayer.song;
 
-import java.util.ArrayList;
-import java.util.Collections;
-
 public class Song {
-	public ArrayList<Note> notes = new ArrayList<>();
+	public NoteStore notes = new NoteStore();
 	public String name;
 	public int position = 0; // Current note index
 	public boolean[] requiredNotes = new boolean[400];
@@ -22,17 +19,53 @@ public class Song {
 		this.name = name;
 	}
 	
+	/**
+	 * Copies the notes and song properties. Playback state (position, time, pause and loop progress) starts fresh.
+	 */
+	public Song copy() {
+		Song copy = new Song(name);
+		copy.notes = notes.copy();
+		copy.requiredNotes = requiredNotes.clone();
+		copy.looping = looping;
+		copy.length = length;
+		copy.loopPosition = loopPosition;
+		copy.loopCount = loopCount;
+		copy.conversionStats = conversionStats;
+		return copy;
+	}
+	
+	// Rough size of the song in memory, which is almost entirely its notes
+	public long getMemoryUsage() {
+		return notes.getMemoryUsage() + requiredNotes.length;
+	}
+	
 	public Note get(int i) {
 		return notes.get(i);
 	}
+
+	public int getNoteId(int i) {
+		return notes.getNoteId(i);
+	}
+
+	public long getTime(int i) {
+		return notes.getTime(i);
+	}
+
+	public int getVelocity(int i) {
+		return notes.getVelocity(i);
+	}
 	
 	public void add(Note e) {
-		notes.add(e);
-		requiredNotes[e.noteId] = true;
+		add(e.noteId, e.time, e.velocity);
+	}
+
+	public void add(int noteId, long time, int velocity) {
+		notes.add(noteId, time, velocity);
+		requiredNotes[noteId] = true;
 	}
 
 	public void sort() {
-		Collections.sort(notes);
+		notes.sort();
 	}
 
 	/**
@@ -65,10 +98,7 @@ public class Song {
 	public void setTime(long t) {
 		time = t;
 		startTime = System.currentTimeMillis() - time;
-		position = 0;
-		while (position < notes.size() && notes.get(position).time < t) {
-			position++;
-		}
+		position = notes.firstIndexAtOrAfter(t);
 	}
 
 	public void advanceTime() {
@@ -77,12 +107,12 @@ public class Song {
 
 	public boolean reachedNextNote() {
 		if (position < notes.size()) {
-			return notes.get(position).time <= time;
+			return notes.getTime(position) <= time;
 		} else {
 			if (time > length && shouldLoop()) {
 				loop();
 				if (position < notes.size()) {
-					return notes.get(position).time <= time;
+					return notes.getTime(position) <= time;
 				} else {
 					return false;
 				}
@@ -93,14 +123,39 @@ public class Song {
 	}
 
 	public Note getNextNote() {
+		int i = nextNoteIndex();
+		return i >= 0 ? notes.get(i) : null;
+	}
+
+	/**
+	 * Allocation-free version of {@link #getNextNote()}.
+	 * Returns the index of the next note and advances the cursor, or -1 if there are no more notes.
+	 */
+	public int nextNoteIndex() {
 		if (position >= notes.size()) {
 			if (shouldLoop()) {
 				loop();
 			} else {
-				return null;
+				return -1;
 			}
 		}
-		return notes.get(position++);
+		if (position >= notes.size()) {
+			return -1;
+		}
+		return position++;
+	}
+
+	/**
+	 * Loops the song if every note has been played and the song should loop.
+	 * Used when notes are consumed by something other than {@link #reachedNextNote()}. Returns whether it looped.
+	 */
+	public boolean checkLoop() {
+		if (position >= notes.size() && time > length && shouldLoop()) {
+			loop();
+			return true;
+		} else {
+			return false;
+		}
 	}
 
 	public boolean finished() {
@@ -108,12 +163,9 @@ public class Song {
 	}
 
 	private void loop() {
-		position = 0;
 		startTime += length - loopPosition;
 		time -= length - loopPosition;
-		while (position < notes.size() && notes.get(position).time < loopPosition) {
-			position++;
-		}
+		position = notes.firstIndexAtOrAfter(loopPosition);
 		currentLoop++;
 	}
 
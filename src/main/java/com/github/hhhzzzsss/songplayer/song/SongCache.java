@@ -0,0 +1,247 @@
+package com.github.hhhzzzsss.songplayer.song;
+
+import com.github.hhhzzzsss.songplayer.Config;
+import com.github.hhhzzzsss.songplayer.SongPlayer;
+import com.github.hhhzzzsss.songplayer.Util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Disk cache of converted songs, so that loading the same file again skips conversion entirely.
+ * Entries are keyed by a hash of the file contents and of everything else that affects the conversion output.
+ * Songs are stored as deflated columns, and the least recently used entries are evicted once the cache exceeds
+ * {@link Config#songCacheMaxSize} megabytes.
+ */
+public class SongCache {
+	public static final Path CACHE_DIR = SongPlayer.SONGPLAYER_DIR.resolve("cache");
+	// Bump whenever a converter changes its output, so that outdated entries are never used
+	public static final int CONVERTER_VERSION = 4;
+	private static final int FORMAT_MAGIC = 0x53504331; // "SPC1"
+	private static final String EXTENSION = ".bin";
+	private static final long MAX_UNCOMPRESSED_SIZE = 256*1024*1024;
+
+	public static boolean isEnabled() {
+		return Config.getConfig().songCacheMaxSize > 0;
+	}
+
+	public static String getKey(byte[] bytes) {
+		return getKey(ByteBuffer.wrap(bytes));
+	}
+
+	public static String getKey(ByteBuffer bytes) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(bytes.duplicate());
+			// Velocities are kept as is in the cache, so the velocity threshold doesn't need to be part of the key
+			digest.update(String.format("|v%d|d%d", CONVERTER_VERSION, Config.getConfig().dedupWindow).getBytes());
+			return HexFormat.of().formatHex(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns the cached song, or null if there is none or it can't be read.
+	 * If the song was named after its file, it's renamed to the given file name.
+	 */
+	public static Song load(String key, String fileName) {
+		Path file = CACHE_DIR.resolve(key + EXTENSION);
+		if (!Files.exists(file)) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new Util.LimitedSizeInputStream(new InflaterInputStream(Files.newInputStream(file)), MAX_UNCOMPRESSED_SIZE)))) {
+			Song song = readSong(in, fileName);
+			// Modification time doubles as the last access time for LRU eviction
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+			return song;
+		} catch (IOException | RuntimeException e) {
+			System.err.println("Discarding unreadable song cache entry " + file + ": " + e.getMessage());
+			try {
+				Files.deleteIfExists(file);
+			} catch (IOException ignored) {}
+			return null;
+		}
+	}
+
+	public static void store(String key, Song song, String fileName) throws IOException {
+		Files.createDirectories(CACHE_DIR);
+		Path tmp = Files.createTempFile(CACHE_DIR, key, ".tmp");
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(Files.newOutputStream(tmp), new Deflater(Deflater.BEST_SPEED))))) {
+				writeSong(out, song, fileName);
+			}
+			// Readers only ever see complete entries
+			Files.move(tmp, CACHE_DIR.resolve(key + EXTENSION), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+		evict(Config.getConfig().songCacheMaxSize * 1024L * 1024L);
+	}
+
+	private static void writeSong(DataOutputStream out, Song song, String fileName) throws IOException {
+		out.writeInt(FORMAT_MAGIC);
+		out.writeBoolean(song.name.equals(fileName));
+		out.writeUTF(song.name);
+		out.writeLong(song.length);
+		out.writeBoolean(song.looping);
+		out.writeInt(song.loopCount);
+		out.writeLong(song.loopPosition);
+		out.writeUTF(song.conversionStats == null ? "" : song.conversionStats);
+
+		// Columns are written one after another since similar values next to each other compress better
+		int size = song.size();
+		out.writeInt(size);
+		long prevTime = 0;
+		for (int i = 0; i < size; i++) {
+			writeVarLong(out, song.getTime(i) - prevTime);
+			prevTime = song.getTime(i);
+		}
+		for (int i = 0; i < size; i++) {
+			out.writeShort(song.getNoteId(i));
+		}
+		for (int i = 0; i < size; i++) {
+			out.writeByte(song.getVelocity(i));
+		}
+	}
+
+	private static Song readSong(DataInputStream in, String fileName) throws IOException {
+		if (in.readInt() != FORMAT_MAGIC) {
+			throw new IOException("Invalid cache entry");
+		}
+		boolean nameFromFile = in.readBoolean();
+		String name = in.readUTF();
+		Song song = new Song(nameFromFile ? fileName : name);
+		song.length = in.readLong();
+		song.looping = in.readBoolean();
+		song.loopCount = in.readInt();
+		song.loopPosition = in.readLong();
+		song.conversionStats = in.readUTF();
+
+		int size = in.readInt();
+		// Every note takes at least 4 bytes, which bounds the count before anything is allocated
+		if (size < 0 || size > MAX_UNCOMPRESSED_SIZE / 4) {
+			throw new IOException("Invalid note count");
+		}
+		long[] times = new long[size];
+		long time = 0;
+		for (int i = 0; i < size; i++) {
+			time += readVarLong(in);
+			times[i] = time;
+		}
+		short[] noteIds = new short[size];
+		for (int i = 0; i < size; i++) {
+			noteIds[i] = in.readShort();
+			if (noteIds[i] < 0 || noteIds[i] >= 400) {
+				throw new IOException("Invalid note id " + noteIds[i]);
+			}
+		}
+		song.notes.ensureCapacity(size);
+		for (int i = 0; i < size; i++) {
+			song.add(noteIds[i], times[i], in.readUnsignedByte());
+		}
+		return song;
+	}
+
+	private static void writeVarLong(DataOutputStream out, long val) throws IOException {
+		do {
+			int b = (int) (val & 0x7F);
+			val >>>= 7;
+			if (val > 0) {
+				b |= 0x80;
+			}
+			out.writeByte(b);
+		} while (val > 0);
+	}
+
+	private static long readVarLong(DataInputStream in) throws IOException {
+		long val = 0;
+		int shift = 0;
+		int b;
+		do {
+			if (shift > 63) {
+				throw new IOException("Varlong is too long");
+			}
+			b = in.readUnsignedByte();
+			val |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return val;
+	}
+
+	// Deletes the least recently used entries until the cache fits in maxBytes
+	public static synchronized void evict(long maxBytes) throws IOException {
+		List<Path> entries = listEntries();
+		entries.sort(Comparator.comparing(SongCache::getLastModifiedTime));
+		long totalSize = 0;
+		for (Path entry : entries) {
+			totalSize += getSize(entry);
+		}
+		for (Path entry : entries) {
+			if (totalSize <= maxBytes) {
+				break;
+			}
+			totalSize -= getSize(entry);
+			Files.deleteIfExists(entry);
+		}
+	}
+
+	public static int getEntryCount() throws IOException {
+		return listEntries().size();
+	}
+
+	public static long getTotalSize() throws IOException {
+		long totalSize = 0;
+		for (Path entry : listEntries()) {
+			totalSize += getSize(entry);
+		}
+		return totalSize;
+	}
+
+	// Returns the number of entries deleted
+	public static synchronized int clear() throws IOException {
+		List<Path> entries = listEntries();
+		for (Path entry : entries) {
+			Files.deleteIfExists(entry);
+		}
+		return entries.size();
+	}
+
+	private static List<Path> listEntries() throws IOException {
+		if (!Files.isDirectory(CACHE_DIR)) {
+			return new ArrayList<>();
+		}
+		try (Stream<Path> files = Files.list(CACHE_DIR)) {
+			return new ArrayList<>(files.filter(file -> file.getFileName().toString().endsWith(EXTENSION)).toList());
+		}
+	}
+
+	// Entries can be deleted concurrently, so missing files count as empty and ancient
+	private static long getSize(Path file) {
+		try {
+			return Files.size(file);
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+	private static FileTime getLastModifiedTime(Path file) {
+		try {
+			return Files.getLastModifiedTime(file);
+		} catch (IOException e) {
+			return FileTime.fromMillis(0);
+		}
+	}
+}
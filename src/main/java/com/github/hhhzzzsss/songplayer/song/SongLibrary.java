@@ -0,0 +1,493 @@
+package com.github.hhhzzzsss.songplayer.song;
+
+import com.github.hhhzzzsss.songplayer.SongPlayer;
+import com.google.gson.Gson;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Index of every song in the songs folder, saved to library.json. Listing songs reads the index instead of the folder,
+ * and details like duration and note density don't need the song to be loaded.
+ * A background thread keeps it up to date with a WatchService, and by comparing sizes and modification times against
+ * the folder on startup, when the watch service overflows and on request. Songs that changed are loaded one at a time
+ * on the loader threads to read their details.
+ */
+public class SongLibrary {
+	public static final Path LIBRARY_FILE = SongPlayer.SONGPLAYER_DIR.resolve("library.json");
+	// Bump whenever the details read from songs change, so that outdated entries are read again.
+	// Entries are also read again when the converters change.
+	private static final int LIBRARY_VERSION = 1;
+	private static final int SAVE_INTERVAL = 100; // Number of indexed songs between saves while indexing
+	private static final Gson gson = new Gson();
+
+	private static SongLibrary instance = null;
+	public static synchronized SongLibrary getInstance() {
+		if (instance == null) {
+			instance = new SongLibrary(SongPlayer.SONG_DIR, LIBRARY_FILE);
+		}
+		return instance;
+	}
+
+	public static class Entry {
+		public String path; // Relative to the songs folder, with / as the separator
+		public long size;
+		public long lastModified;
+		public boolean indexed = false; // Whether the details below have been read yet
+		public String error = null; // Set if the song couldn't be loaded
+		public String name;
+		public String format;
+		public long duration; // Milliseconds
+		public int noteCount;
+		public int peakNotesPerSecond;
+		public double averageNotesPerSecond;
+		public List<String> instruments;
+		public int distinctNotes;
+
+		public String getFileName() {
+			return path.substring(path.lastIndexOf('/') + 1);
+		}
+	}
+
+	private static class LibraryData {
+		int version;
+		int converterVersion;
+		List<Entry> songs;
+		List<String> directories;
+	}
+
+	private final Path songDir;
+	private final Path libraryFile;
+	// Guarded by this. Entries are replaced rather than modified, so they can be handed out as is.
+	private final TreeMap<String, Entry> entries = new TreeMap<>();
+	private final TreeSet<String> directories = new TreeSet<>(); // With a trailing /
+	private boolean ready = false;
+
+	// Only used by the library thread
+	private final LinkedHashSet<String> pending = new LinkedHashSet<>();
+	private final HashMap<WatchKey, Path> watchedDirs = new HashMap<>();
+	private WatchService watchService;
+	private boolean modified = false;
+
+	private volatile boolean refreshRequested = true;
+	private Thread thread = null;
+
+	public SongLibrary(Path songDir, Path libraryFile) {
+		this.songDir = songDir;
+		this.libraryFile = libraryFile;
+	}
+
+	public synchronized void start() {
+		if (thread == null) {
+			thread = new Thread(this::run, "Song Library");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	// Compares the index against the songs folder again
+	public void refresh() {
+		refreshRequested = true;
+	}
+
+	// Whether the index can be used for listing, which is as soon as it's been read from disk or the folder has been scanned once
+	public synchronized boolean isReady() {
+		return ready;
+	}
+
+	// Songs directly inside a directory, where the directory is "" for the songs folder itself or ends with a /
+	public synchronized List<String> getSongs(String directory) {
+		ArrayList<String> songs = new ArrayList<>();
+		for (String path : entries.subMap(directory, directory + Character.MAX_VALUE).keySet()) {
+			if (path.indexOf('/', directory.length()) == -1) {
+				songs.add(path.substring(directory.length()));
+			}
+		}
+		return songs;
+	}
+
+	// Subdirectories directly inside a directory, each with a trailing /
+	public synchronized List<String> getSubdirectories(String directory) {
+		ArrayList<String> subdirectories = new ArrayList<>();
+		for (String path : directories.subSet(directory, directory + Character.MAX_VALUE)) {
+			if (path.length() > directory.length() && path.indexOf('/', directory.length()) == path.length() - 1) {
+				subdirectories.add(path.substring(directory.length()));
+			}
+		}
+		return subdirectories;
+	}
+
+	public synchronized boolean hasDirectory(String directory) {
+		return directory.isEmpty() || directories.contains(directory);
+	}
+
+	public synchronized Entry getEntry(String path) {
+		return entries.get(path);
+	}
+
+	// Songs whose path or name contains the query, ignoring case
+	public synchronized List<Entry> search(String query) {
+		String lowerQuery = query.toLowerCase(Locale.ROOT);
+		ArrayList<Entry> results = new ArrayList<>();
+		for (Entry entry : entries.values()) {
+			if (entry.path.toLowerCase(Locale.ROOT).contains(lowerQuery)
+					|| (entry.name != null && entry.name.toLowerCase(Locale.ROOT).contains(lowerQuery))) {
+				results.add(entry);
+			}
+		}
+		return results;
+	}
+
+	public synchronized int getSongCount() {
+		return entries.size();
+	}
+
+	public synchronized int getIndexedCount() {
+		int count = 0;
+		for (Entry entry : entries.values()) {
+			if (entry.indexed) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	public synchronized int getFailedCount() {
+		int count = 0;
+		for (Entry entry : entries.values()) {
+			if (entry.error != null) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private void run() {
+		load();
+		try {
+			watchService = songDir.getFileSystem().newWatchService();
+		}
+		catch (IOException e) {
+			System.err.println("Song library can't watch the songs folder, so it only updates on refresh: " + e.getMessage());
+		}
+
+		int indexedSinceSave = 0;
+		while (true) {
+			try {
+				if (refreshRequested) {
+					refreshRequested = false;
+					scanDirectory(songDir);
+					synchronized (this) {
+						ready = true;
+					}
+				}
+				processWatchEvents(false);
+
+				Iterator<String> itr = pending.iterator();
+				if (itr.hasNext()) {
+					String path = itr.next();
+					itr.remove();
+					index(path);
+					indexedSinceSave++;
+				}
+
+				if (modified && (pending.isEmpty() || indexedSinceSave >= SAVE_INTERVAL)) {
+					save();
+					indexedSinceSave = 0;
+				}
+
+				if (pending.isEmpty() && !refreshRequested) {
+					processWatchEvents(true);
+				}
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+			catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	// Reads events from the watch service, waiting up to a second for them if told to block
+	private void processWatchEvents(boolean block) throws InterruptedException {
+		if (watchService == null) {
+			if (block) {
+				Thread.sleep(1000);
+			}
+			return;
+		}
+		WatchKey key = block ? watchService.poll(1, TimeUnit.SECONDS) : watchService.poll();
+		while (key != null) {
+			Path dir = watchedDirs.get(key);
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+					refreshRequested = true;
+				}
+				else if (dir != null) {
+					Path child = dir.resolve((Path) event.context());
+					if (Files.isDirectory(child)) {
+						scanDirectory(child);
+					}
+					else {
+						checkFile(child);
+					}
+				}
+			}
+			if (!key.reset()) {
+				watchedDirs.remove(key);
+			}
+			key = watchService.poll();
+		}
+	}
+
+	// Compares everything under a directory against the index, and watches its subdirectories
+	private void scanDirectory(Path dir) {
+		String prefix = dir.equals(songDir) ? "" : getKey(dir) + "/";
+		HashSet<String> seenSongs = new HashSet<>();
+		HashSet<String> seenDirectories = new HashSet<>();
+		try {
+			Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attributes) {
+					watch(path);
+					if (!path.equals(songDir)) {
+						seenDirectories.add(getKey(path) + "/");
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) {
+					if (attributes.isRegularFile()) {
+						String key = getKey(path);
+						seenSongs.add(key);
+						checkFile(key, attributes.size(), attributes.lastModifiedTime().toMillis());
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path path, IOException e) {
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}
+		catch (IOException e) {
+			System.err.println("Failed to scan " + dir + " for the song library: " + e.getMessage());
+			return;
+		}
+
+		synchronized (this) {
+			modified |= entries.subMap(prefix, prefix + Character.MAX_VALUE).keySet().retainAll(seenSongs);
+			modified |= directories.subSet(prefix, prefix + Character.MAX_VALUE).retainAll(seenDirectories);
+			modified |= directories.addAll(seenDirectories);
+			pending.retainAll(entries.keySet());
+		}
+	}
+
+	private void checkFile(Path path) {
+		String key = getKey(path);
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+			if (attributes.isRegularFile()) {
+				checkFile(key, attributes.size(), attributes.lastModifiedTime().toMillis());
+				return;
+			}
+		}
+		catch (IOException ignored) {}
+
+		// Deleted, which might also have been a directory
+		String prefix = key + "/";
+		synchronized (this) {
+			SortedMap<String, Entry> contents = entries.subMap(prefix, prefix + Character.MAX_VALUE);
+			SortedSet<String> subdirectories = directories.subSet(prefix, prefix + Character.MAX_VALUE);
+			if (entries.containsKey(key) || directories.contains(prefix) || !contents.isEmpty()) {
+				entries.remove(key);
+				contents.clear();
+				subdirectories.clear();
+				directories.remove(prefix);
+				modified = true;
+			}
+			pending.retainAll(entries.keySet());
+		}
+	}
+
+	// Songs that are new or changed get an entry without details right away, so they can be listed until they're indexed
+	private void checkFile(String key, long size, long lastModified) {
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null && entry.size == size && entry.lastModified == lastModified) {
+				if (!entry.indexed) {
+					pending.add(key);
+				}
+				return;
+			}
+			Entry newEntry = new Entry();
+			newEntry.path = key;
+			newEntry.size = size;
+			newEntry.lastModified = lastModified;
+			entries.put(key, newEntry);
+			modified = true;
+		}
+		pending.add(key);
+	}
+
+	private void index(String key) {
+		Entry oldEntry;
+		synchronized (this) {
+			oldEntry = entries.get(key);
+		}
+		if (oldEntry == null) {
+			return;
+		}
+
+		Entry entry = new Entry();
+		entry.path = key;
+		entry.size = oldEntry.size;
+		entry.lastModified = oldEntry.lastModified;
+		entry.indexed = true;
+		Path path = songDir.resolve(key);
+		SongLoadTask loader = new SongLoadTask(path);
+		loader.setStoreInCache(false);
+		try {
+			readDetails(entry, SongLoader.load(loader).join());
+		}
+		catch (CompletionException e) {
+			entry.error = e.getCause() != null ? e.getCause().getMessage() : e.getMessage();
+		}
+		catch (RuntimeException e) {
+			entry.error = e.getMessage();
+		}
+		// The load already read the file, so its format is taken from there instead of opening the file again
+		if (loader.format != null) {
+			entry.format = loader.format.name();
+		}
+		if (entry.error == null && entry.name == null) {
+			entry.error = "Unknown error";
+		}
+
+		synchronized (this) {
+			// Skipped if the file changed or was removed while it was being indexed
+			if (entries.get(key) == oldEntry) {
+				entries.put(key, entry);
+				modified = true;
+			}
+		}
+	}
+
+	private static void readDetails(Entry entry, Song song) {
+		entry.name = song.name;
+		entry.duration = song.length;
+		entry.noteCount = song.size();
+		entry.averageNotesPerSecond = song.length > 0 ? song.size() * 1000.0 / song.length : 0;
+
+		// Largest number of notes within any one second
+		int peak = 0;
+		int windowStart = 0;
+		for (int i = 0; i < song.size(); i++) {
+			while (song.getTime(i) - song.getTime(windowStart) >= 1000) {
+				windowStart++;
+			}
+			peak = Math.max(peak, i - windowStart + 1);
+		}
+		entry.peakNotesPerSecond = peak;
+
+		entry.instruments = new ArrayList<>();
+		entry.distinctNotes = 0;
+		for (int instrumentId = 0; instrumentId < 16; instrumentId++) {
+			boolean used = false;
+			for (int pitch = 0; pitch < 25; pitch++) {
+				if (song.requiredNotes[instrumentId*25 + pitch]) {
+					used = true;
+					entry.distinctNotes++;
+				}
+			}
+			if (used) {
+				entry.instruments.add(Instrument.getInstrumentFromId(instrumentId).name());
+			}
+		}
+	}
+
+	private void watch(Path dir) {
+		if (watchService == null) {
+			return;
+		}
+		try {
+			WatchKey key = dir.register(watchService,
+					StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+			watchedDirs.put(key, dir);
+		}
+		catch (IOException e) {
+			System.err.println("Failed to watch " + dir + " for the song library: " + e.getMessage());
+		}
+	}
+
+	private String getKey(Path path) {
+		StringJoiner joiner = new StringJoiner("/");
+		for (Path part : songDir.relativize(path)) {
+			joiner.add(part.toString());
+		}
+		return joiner.toString();
+	}
+
+	private void load() {
+		if (!Files.exists(libraryFile)) {
+			return;
+		}
+		try (BufferedReader reader = Files.newBufferedReader(libraryFile)) {
+			LibraryData data = gson.fromJson(reader, LibraryData.class);
+			synchronized (this) {
+				if (data.songs != null) {
+					for (Entry entry : data.songs) {
+						if (data.version != LIBRARY_VERSION || data.converterVersion != SongCache.CONVERTER_VERSION) {
+							// Still listed, but read again
+							entry.indexed = false;
+							entry.error = null;
+						}
+						entries.put(entry.path, entry);
+					}
+				}
+				if (data.directories != null) {
+					directories.addAll(data.directories);
+				}
+				ready = true;
+			}
+		}
+		catch (Exception e) {
+			System.err.println("Discarding unreadable song library: " + e.getMessage());
+		}
+	}
+
+	private void save() {
+		LibraryData data = new LibraryData();
+		data.version = LIBRARY_VERSION;
+		data.converterVersion = SongCache.CONVERTER_VERSION;
+		synchronized (this) {
+			data.songs = new ArrayList<>(entries.values());
+			data.directories = new ArrayList<>(directories);
+			modified = false;
+		}
+		try {
+			Files.createDirectories(libraryFile.getParent());
+			Path tmp = Files.createTempFile(libraryFile.getParent(), "library", ".tmp");
+			try {
+				try (BufferedWriter writer = Files.newBufferedWriter(tmp)) {
+					writer.write(gson.toJson(data));
+				}
+				Files.move(tmp, libraryFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(tmp);
+			}
+		}
+		catch (IOException e) {
+			System.err.println("Failed to save song library: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,326 @@
+package com.github.hhhzzzsss.songplayer.song;
+
+import com.github.hhhzzzsss.songplayer.SongPlayer;
+import com.github.hhhzzzsss.songplayer.Util;
+import com.github.hhhzzzsss.songplayer.conversion.MidiConverter;
+import com.github.hhhzzzsss.songplayer.conversion.NBSConverter;
+import com.github.hhhzzzsss.songplayer.conversion.SPConverter;
+import com.github.hhhzzzsss.songplayer.conversion.SongFormat;
+import com.github.hhhzzzsss.songplayer.conversion.TxtConverter;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Loads and converts a song. Loads are run by {@link SongLoader}, which is also what cancels them.
+ */
+public class SongLoadTask implements Runnable {
+	private static final long MAP_THRESHOLD = 4*1024*1024;
+
+	private String location;
+	private Path songPath;
+	private URL songUrl;
+	public Exception exception;
+	public Song song;
+	public String filename;
+	public SongFormat format; // Detected from the file's header, even when the song comes from the cache
+
+	private boolean isUrl = false;
+	private ByteBuffer downloadedBytes;
+	private volatile boolean cancelled = false;
+	private boolean storeInCache = true;
+	private volatile Thread downloadThread;
+
+	// 进度回调
+	private ProgressListener progressListener;
+	private volatile int loadingProgress = 0;
+	private volatile String loadingStage = "";
+	private volatile int lastReportedProgress = -1; // 上次报告的进度百分比
+
+	public interface ProgressListener {
+		void onProgress(int percentage, String stage);
+	}
+
+	public void setProgressListener(ProgressListener listener) {
+		this.progressListener = listener;
+	}
+
+	// Loads that aren't for playing, like indexing, shouldn't push songs that are played out of the cache
+	public void setStoreInCache(boolean storeInCache) {
+		this.storeInCache = storeInCache;
+	}
+
+	public int getLoadingProgress() {
+		return loadingProgress;
+	}
+
+	public String getLoadingStage() {
+		return loadingStage;
+	}
+
+	protected SongLoadTask() {}
+
+	public SongLoadTask(String location) throws IOException {
+		this.location = location;
+		if (location.startsWith("http://") || location.startsWith("https://")) {
+			isUrl = true;
+			songUrl = new URL(location);
+		}
+		else if (Files.exists(getSongFile(location))) {
+			songPath = getSongFile(location);
+		}
+		else if (Files.exists(getSongFile(location+".mid"))) {
+			songPath = getSongFile(location+".mid");
+		}
+		else if (Files.exists(getSongFile(location+".midi"))) {
+			songPath = getSongFile(location+".midi");
+		}
+		else if (Files.exists(getSongFile(location+".nbs"))) {
+			songPath = getSongFile(location+".nbs");
+		}
+		else if (Files.exists(getSongFile(location+".sp"))) {
+			songPath = getSongFile(location+".sp");
+		}
+		else {
+			throw new IOException("Could not find song: " + location);
+		}
+	}
+
+	public SongLoadTask(Path file) {
+		this.songPath = file;
+	}
+
+	public boolean isDownload() {
+		return isUrl;
+	}
+
+	/**
+	 * Downloads the song ahead of {@link #run()}, so that waiting on the network can happen on a separate thread from conversion.
+	 * Cancelling interrupts the download.
+	 */
+	public void download() {
+		downloadThread = Thread.currentThread();
+		try {
+			checkCancelled();
+			downloadedBytes = downloadSong();
+		}
+		catch (Exception e) {
+			fail(e);
+		}
+		finally {
+			downloadThread = null;
+		}
+	}
+
+	// Cancellation is cooperative, and takes effect at the next checkpoint of the load
+	public void cancel() {
+		cancelled = true;
+		Thread thread = downloadThread;
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	protected void checkCancelled() {
+		if (cancelled) {
+			throw new CancellationException("Song loading was cancelled");
+		}
+	}
+
+	public void run() {
+		if (exception != null) { // Download failed
+			return;
+		}
+		try {
+			ByteBuffer bytes;
+
+			// 下载/读取文件阶段
+			if (isUrl) {
+				bytes = downloadedBytes != null ? downloadedBytes : downloadSong();
+				downloadedBytes = null;
+			}
+			else {
+				updateProgress(0, "正在加载文件...");
+				bytes = readSongFile(songPath);
+				filename = songPath.getFileName().toString();
+			}
+			updateProgress(20, "文件加载完成");
+			checkCancelled();
+			format = SongFormat.detect(bytes);
+
+			// Converted songs are cached by content, so repeat loads skip conversion entirely
+			String cacheKey = null;
+			boolean cached = false;
+			if (SongCache.isEnabled()) {
+				cacheKey = SongCache.getKey(bytes);
+				song = SongCache.load(cacheKey, filename);
+				if (song != null) {
+					cached = true;
+					updateProgress(95, "已从缓存加载");
+				}
+			}
+
+			if (song == null) {
+				checkCancelled();
+				song = convert(bytes, format);
+			}
+
+			if (song == null) {
+				throw new IOException("Invalid song format");
+			}
+
+			if (cacheKey != null && !cached && storeInCache) {
+				try {
+					SongCache.store(cacheKey, song, filename);
+				} catch (IOException e) {
+					System.err.println("Failed to cache song " + filename + ": " + e.getMessage());
+				}
+			}
+
+			// 显示转换统计信息（如果有）
+			if (song.conversionStats != null && !song.conversionStats.isEmpty()) {
+				updateProgress(100, song.conversionStats);
+			} else {
+				updateProgress(100, "歌曲加载完成");
+			}
+		}
+		catch (Exception e) {
+			fail(e);
+		}
+	}
+
+	private ByteBuffer downloadSong() throws Exception {
+		updateProgress(0, "正在下载文件...");
+		byte[] data = DownloadUtils.DownloadToByteArray(songUrl, 10*1024*1024);
+		if (data == null) { // Interrupted
+			checkCancelled();
+			throw new IOException("Download was interrupted");
+		}
+		filename = Paths.get(songUrl.toURI().getPath()).getFileName().toString();
+		return ByteBuffer.wrap(data);
+	}
+
+	protected void fail(Exception e) {
+		exception = cancelled ? new CancellationException("Song loading was cancelled") : e;
+		if (!cancelled) {
+			updateProgress(-1, "加载失败: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Large files are memory-mapped, so that they are parsed straight from the page cache instead of being copied onto the heap first.
+	 * Small files are read normally, since mapping has a fixed cost and keeps the file open until the mapping is garbage collected.
+	 */
+	private static ByteBuffer readSongFile(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("File is too large: " + path.getFileName());
+			}
+			if (size >= MAP_THRESHOLD) {
+				return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			}
+			ByteBuffer buffer = ByteBuffer.allocate((int) size);
+			while (buffer.hasRemaining() && channel.read(buffer) >= 0);
+			return buffer.flip();
+		}
+	}
+
+	// Dispatches straight to the detected format's converter, and only tries every converter if the format is unknown
+	private Song convert(ByteBuffer bytes, SongFormat format) throws IOException {
+		try {
+			switch (format) {
+				case MIDI:
+					return convertMidi(bytes);
+				case NBS:
+					updateProgress(70, "正在解析NBS格式...");
+					return NBSConverter.getSongFromBuffer(bytes, filename);
+				case SP:
+					updateProgress(70, "正在解析SP格式...");
+					return SPConverter.getSongFromBuffer(bytes, filename);
+				case TXT:
+					updateProgress(85, "正在解析TXT格式...");
+					return TxtConverter.getSongFromBuffer(bytes, filename);
+				default:
+					return convertUnknown(bytes);
+			}
+		}
+		catch (OutOfMemoryError e) {
+			throw new IOException("内存不足！文件过大，请增加Java堆内存或使用较小的MIDI文件");
+		}
+		catch (IOException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw new IOException("无法解析" + format + "文件: " + e.getMessage(), e);
+		}
+	}
+
+	private Song convertMidi(ByteBuffer bytes) throws Exception {
+		updateProgress(25, "正在解析MIDI格式...");
+		Song song = MidiConverter.getSongFromBuffer(bytes, filename, (percentage, processed, total) -> {
+			checkCancelled();
+			// 将MIDI解析进度映射到25%-70%
+			int overallProgress = 25 + (percentage * 45 / 100);
+			// 简化显示，不显示具体事件数（避免刷屏）
+			updateProgress(overallProgress, "解析MIDI中...");
+		});
+		updateProgress(70, "MIDI解析完成");
+		return song;
+	}
+
+	// Files whose header doesn't match any format are tried with every converter in turn
+	private Song convertUnknown(ByteBuffer bytes) {
+		try {
+			return convertMidi(bytes);
+		}
+		catch (Exception e) {
+			updateProgress(30, "非MIDI格式");
+		}
+		try {
+			updateProgress(70, "尝试解析NBS格式...");
+			Song song = NBSConverter.getSongFromBuffer(bytes, filename);
+			updateProgress(85, "NBS解析完成");
+			return song;
+		}
+		catch (Exception e) {
+			updateProgress(75, "非NBS格式");
+		}
+		try {
+			updateProgress(85, "尝试解析TXT格式...");
+			Song song = TxtConverter.getSongFromBuffer(bytes, filename);
+			updateProgress(95, "TXT解析完成");
+			return song;
+		}
+		catch (Exception e) {
+			updateProgress(90, "非TXT格式");
+		}
+		return null;
+	}
+
+	private void updateProgress(int percentage, String stage) {
+		this.loadingProgress = percentage;
+		this.loadingStage = stage;
+
+		// 只在进度百分比变化时才通知（避免刷屏）
+		if (progressListener != null && percentage != lastReportedProgress) {
+			lastReportedProgress = percentage;
+			progressListener.onProgress(percentage, stage);
+		}
+	}
+
+	private Path getSongFile(String name) throws IOException {
+		return Util.resolveWithIOException(SongPlayer.SONG_DIR, name);
+	}
+}
@@ -0,0 +1,81 @@
+package com.github.hhhzzzsss.songplayer.song;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs song loads in the background and hands back their results as futures.
+ * Conversion is CPU-bound, so it runs on a small bounded pool, while downloads mostly wait on the network and get a virtual thread each.
+ * Cancelling a returned future stops its load at the next checkpoint.
+ */
+public class SongLoader {
+	private static final int LOADER_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+	private static final AtomicInteger loaderThreadCount = new AtomicInteger();
+	private static final ThreadPoolExecutor LOAD_EXECUTOR = createLoadExecutor();
+	private static final ExecutorService DOWNLOAD_EXECUTOR = Executors.newThreadPerTaskExecutor(
+			Thread.ofVirtual().name("Song Downloader ", 1).factory());
+
+	private static ThreadPoolExecutor createLoadExecutor() {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(
+				LOADER_THREADS, LOADER_THREADS,
+				30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(),
+				runnable -> {
+					Thread thread = new Thread(runnable, "Song Loader " + loaderThreadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+		// Idle loader threads exit, since songs are loaded in bursts
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * Starts a load and returns its song. The future completes on a loader thread, so results that touch the game
+	 * should be handled with one of the async methods and the client as the executor.
+	 */
+	public static CompletableFuture<Song> load(SongLoadTask loader) {
+		CompletableFuture<Void> work;
+		if (loader.isDownload()) {
+			work = CompletableFuture.runAsync(loader::download, DOWNLOAD_EXECUTOR)
+					.thenRunAsync(loader, LOAD_EXECUTOR);
+		}
+		else {
+			work = CompletableFuture.runAsync(loader, LOAD_EXECUTOR);
+		}
+
+		CompletableFuture<Song> result = new CompletableFuture<>();
+		work.whenComplete((ignored, e) -> {
+			if (e != null) {
+				result.completeExceptionally(e);
+			}
+			else if (loader.exception instanceof CancellationException) {
+				result.cancel(false);
+			}
+			else if (loader.exception != null) {
+				result.completeExceptionally(loader.exception);
+			}
+			else {
+				result.complete(loader.song);
+			}
+		});
+		result.whenComplete((song, e) -> {
+			if (result.isCancelled()) {
+				loader.cancel();
+			}
+		});
+		return result;
+	}
+
+	// For other background work that belongs to song loading, so that it shares the bound on loader threads
+	public static Executor getExecutor() {
+		return LOAD_EXECUTOR;
+	}
+}
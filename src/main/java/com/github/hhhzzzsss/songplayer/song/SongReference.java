@@ -0,0 +1,47 @@
+package com.github.hhhzzzsss.songplayer.song;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A queued song that is only loaded when it's needed. Should only be used from the client thread.
+ */
+public class SongReference {
+	private final String name;
+	private SongLoadTask loader;
+	private CompletableFuture<Song> load;
+
+	// Song from a file or url, which isn't loaded until load() is called
+	public SongReference(String name, SongLoadTask loader) {
+		this.name = name;
+		this.loader = loader;
+	}
+
+	// Song that is already being loaded, or has been loaded, elsewhere (like a song item)
+	public SongReference(String name, CompletableFuture<Song> load) {
+		this.name = name;
+		this.load = load;
+	}
+
+	// Starts loading the song if it hasn't been started yet
+	public CompletableFuture<Song> load() {
+		if (load == null) {
+			load = SongLoader.load(loader);
+			loader = null;
+		}
+		return load;
+	}
+
+	public void cancel() {
+		if (load != null) {
+			load.cancel(false);
+		}
+	}
+
+	// Name of the loaded song, or the name it was queued with if it hasn't loaded yet
+	public String getName() {
+		if (load != null && load.isDone() && !load.isCompletedExceptionally()) {
+			return load.join().name;
+		}
+		return name;
+	}
+}